@@ -0,0 +1,356 @@
+package tripod.clinical;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import tripod.clinical.ClinicalCrawler.AlignmentRef;
+import tripod.clinical.ClinicalCrawler.AlignmentResults;
+import tripod.clinical.SmithWaterman.Alignment;
+
+/**
+ * Term to AlignmentResults (null for none) cache bounded by the
+ * estimated bytes the results take up on the heap. Eviction is by
+ * segmented LRU: a term starts out on probation and is moved to the
+ * protected segment (at most PROTECTED of the bytes) when it's asked for
+ * again, so one-off terms (e.g., titles) don't push out the popular
+ * interventions. An evicted term goes to the off-heap tier, if there's
+ * one, serialized into a direct ring buffer that's written around and
+ * drops its oldest terms to make room; from there a term that's asked
+ * for again is put back on the heap. A term is aligned (or decoded off
+ * the heap) by whoever asks for it first, outside of the lock; anyone
+ * asking for it in the mean time waits for that instead of doing it
+ * too, and a failed alignment isn't kept.
+ */
+class AlignmentCache {
+    static final double PROTECTED = .8;
+
+    static class Entry {
+        final String term;
+        final AlignmentResults results;
+        final long weight;
+        boolean protect; // in the protected segment, or on probation
+
+        Entry (String term, AlignmentResults results) {
+            this.term = term;
+            this.results = results;
+            this.weight = weight (term, results);
+        }
+    }
+
+    // both in LRU order, least recently used first
+    final LinkedHashMap<String, Entry> probation =
+        new LinkedHashMap<String, Entry>();
+    final LinkedHashMap<String, Entry> protect =
+        new LinkedHashMap<String, Entry>();
+    final Map<String, FutureTask<AlignmentResults>> pending =
+        new HashMap<String, FutureTask<AlignmentResults>>();
+    final long maxBytes;
+    long bytes, protectedBytes;
+
+    /*
+     * off-heap tier; term to [offset, length) of its bytes in ring, in
+     * the order written, i.e., by offset starting at the write position
+     */
+    final ByteBuffer ring;
+    final LinkedHashMap<String, int[]> offHeap =
+        new LinkedHashMap<String, int[]>();
+    int write; // where the next term goes in ring
+    long offHeapBytes;
+
+    // misses are resolved by the callable, from the store or aligned
+    long hits, offHeapHits, misses, waits, evictions, offHeapEvictions;
+
+    AlignmentCache (long maxBytes) {
+        this (maxBytes, 0);
+    }
+
+    AlignmentCache (long maxBytes, long offHeapBytes) {
+        this.maxBytes = maxBytes;
+        ring = offHeapBytes > 0 ? ByteBuffer.allocateDirect
+            ((int)Math.min(offHeapBytes, Integer.MAX_VALUE)) : null;
+    }
+
+    /**
+     * The alignments of term, cached or by calling align
+     */
+    public AlignmentResults get (final String term,
+                                 Callable<AlignmentResults> align)
+        throws InterruptedException {
+        FutureTask<AlignmentResults> task;
+        boolean run = false;
+        synchronized (this) {
+            Entry e = find (term);
+            if (e != null)
+                return e.results;
+
+            task = pending.get(term);
+            if (task == null) {
+                final byte[] b = offHeap (term);
+                if (b != null) {
+                    task = new FutureTask<AlignmentResults>
+                        (new Callable<AlignmentResults>() {
+                                public AlignmentResults call () {
+                                    return decode (term, ByteBuffer.wrap(b));
+                                }
+                            });
+                    ++offHeapHits;
+                }
+                else {
+                    task = new FutureTask<AlignmentResults>(align);
+                    ++misses;
+                }
+                pending.put(term, task);
+                run = true;
+            }
+            else
+                ++waits;
+        }
+
+        if (run) {
+            try {
+                task.run();
+            }
+            finally {
+                synchronized (this) {
+                    pending.remove(term);
+                    try {
+                        put (term, task.get());
+                    }
+                    catch (ExecutionException ex) {
+                        // not kept
+                    }
+                }
+            }
+        }
+
+        try {
+            return task.get();
+        }
+        catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            if (cause instanceof Error)
+                throw (Error)cause;
+            throw new RuntimeException (cause);
+        }
+    }
+
+    // the entry for term on the heap, now the most recently used; null if none
+    Entry find (String term) {
+        Entry e = probation.remove(term);
+        if (e != null) { // asked for again
+            bytes -= e.weight;
+            ++hits;
+            add (e, true);
+            return e;
+        }
+
+        e = protect.remove(term);
+        if (e != null) {
+            protect.put(term, e);
+            ++hits;
+            return e;
+        }
+        return null;
+    }
+
+    /*
+     * the bytes of term taken off the heap, copied out of the ring
+     * since they can be written over once they're no longer in offHeap;
+     * null if they aren't there
+     */
+    byte[] offHeap (String term) {
+        int[] at = offHeap.remove(term);
+        if (at == null)
+            return null;
+        offHeapBytes -= at[1];
+        byte[] b = new byte[at[1]];
+        ByteBuffer buf = ring.duplicate();
+        buf.position(at[0]);
+        buf.get(b);
+        return b;
+    }
+
+    void put (String term, AlignmentResults results) {
+        add (new Entry (term, results), false);
+    }
+
+    void add (Entry e, boolean protect) {
+        if (e.weight > maxBytes) {
+            evict (e);
+            return;
+        }
+
+        e.protect = protect;
+        bytes += e.weight;
+        if (protect) {
+            this.protect.put(e.term, e);
+            protectedBytes += e.weight;
+            // demote the least recently used to probation
+            for (Iterator<Entry> it = this.protect.values().iterator();
+                 protectedBytes > PROTECTED * maxBytes && it.hasNext(); ) {
+                Entry lru = it.next();
+                it.remove();
+                protectedBytes -= lru.weight;
+                lru.protect = false;
+                probation.put(lru.term, lru);
+            }
+        }
+        else
+            probation.put(e.term, e);
+
+        while (bytes > maxBytes) {
+            Iterator<Entry> it = !probation.isEmpty()
+                ? probation.values().iterator()
+                : this.protect.values().iterator();
+            Entry lru = it.next();
+            it.remove();
+            bytes -= lru.weight;
+            if (lru.protect)
+                protectedBytes -= lru.weight;
+            evict (lru);
+        }
+    }
+
+    // off the heap to the off-heap tier, if there's one
+    void evict (Entry e) {
+        ++evictions;
+        if (ring == null)
+            return;
+
+        byte[] b = encode (e.results);
+        int cap = ring.capacity();
+        if (b.length > cap)
+            return;
+
+        if (write + b.length > cap) {
+            // the oldest terms are from the write position to the end
+            for (Iterator<int[]> it = offHeap.values().iterator();
+                 it.hasNext(); ) {
+                int[] at = it.next();
+                if (at[0] < write)
+                    break;
+                it.remove();
+                offHeapBytes -= at[1];
+                ++offHeapEvictions;
+            }
+            write = 0;
+        }
+
+        // make room past the write position
+        for (Iterator<int[]> it = offHeap.values().iterator();
+             it.hasNext(); ) {
+            int[] at = it.next();
+            if (at[0] < write || at[0] >= write + b.length)
+                break;
+            it.remove();
+            offHeapBytes -= at[1];
+            ++offHeapEvictions;
+        }
+
+        ByteBuffer buf = ring.duplicate();
+        buf.position(write);
+        buf.put(b);
+        offHeap.put(e.term, new int[]{ write, b.length });
+        write += b.length;
+        offHeapBytes += b.length;
+    }
+
+    /*
+     * Rough bytes the results of term take up on the heap: the strings,
+     * the traces and the objects and set entries holding them
+     */
+    static long weight (String term, AlignmentResults results) {
+        long w = 96 + 2*term.length();
+        if (results != null) {
+            for (AlignmentRef ar : results.results()) {
+                w += 200 + 2*(ar.id.length() + ar.ref.length())
+                    + 4*ar.result.trace.length;
+            }
+        }
+        return w;
+    }
+
+    /*
+     * The results as the ids, dictionary terms and traces of their
+     * alignments; the rest is worked out again from those by decode
+     */
+    static byte[] encode (AlignmentResults results) {
+        int size = 4;
+        if (results != null) {
+            size += 1;
+            for (AlignmentRef ar : results.results())
+                size += 12 + 2*(ar.id.length() + ar.ref.length())
+                    + 4*ar.result.trace.length;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        if (results == null) {
+            buf.putInt(-1);
+        }
+        else {
+            buf.putInt(results.size());
+            buf.put((byte)(results.hasExact() ? 1 : 0));
+            for (AlignmentRef ar : results.results()) {
+                putString (buf, ar.id);
+                putString (buf, ar.ref);
+                buf.putInt(ar.result.trace.length);
+                for (int p : ar.result.trace)
+                    buf.putInt(p);
+            }
+        }
+        return buf.array();
+    }
+
+    static AlignmentResults decode (String term, ByteBuffer buf) {
+        int size = buf.getInt();
+        if (size < 0)
+            return null;
+
+        AlignmentResults results = new AlignmentResults (term);
+        results.hasExact = buf.get() != 0;
+        for (int k = 0; k < size; ++k) {
+            String id = getString (buf);
+            String ref = getString (buf);
+            int[] trace = new int[buf.getInt()];
+            for (int i = 0; i < trace.length; ++i)
+                trace[i] = buf.getInt();
+            results.results.add(new AlignmentRef
+                                (id, term, ref,
+                                 new Alignment (term, ref, trace)));
+        }
+        return results;
+    }
+
+    static void putString (ByteBuffer buf, String s) {
+        buf.putInt(s.length());
+        for (int i = 0; i < s.length(); ++i)
+            buf.putChar(s.charAt(i));
+    }
+
+    static String getString (ByteBuffer buf) {
+        char[] s = new char[buf.getInt()];
+        for (int i = 0; i < s.length; ++i)
+            s[i] = buf.getChar();
+        return new String (s);
+    }
+
+    public synchronized int size () {
+        return probation.size() + protect.size();
+    }
+
+    public synchronized String toString () {
+        return "## "+hits+" term(s) found aligned, "+offHeapHits
+            +" off the heap, "+misses+" missed, "+waits+" waited on; "
+            +size ()+" term(s) in "+bytes+" byte(s) ("+evictions
+            +" evicted), "+offHeap.size()+" in "+offHeapBytes
+            +" byte(s) off the heap ("+offHeapEvictions+" dropped)";
+    }
+}
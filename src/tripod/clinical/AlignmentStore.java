@@ -0,0 +1,273 @@
+package tripod.clinical;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import tripod.clinical.ClinicalCrawler.AlignmentResults;
+
+/**
+ * Term to AlignmentResults store kept on disk from one run to the next.
+ * The file has the fingerprint of the settings the terms were aligned
+ * with (the modifiers and such) and one for each dictionary class,
+ * followed by the terms and their results as AlignmentCache encodes
+ * them, and a hash table over the terms at the end; it's mapped into
+ * memory to look a term up. A file aligned with other settings is
+ * ignored. A class that's been removed or changed since makes the terms
+ * matched to it stale, and one that's been added or changed is in delta
+ * for the terms to be checked against before they're taken as they
+ * are. The terms looked up or aligned in this run are written to a new
+ * file that replaces the old one on close.
+ *
+ * <pre>
+ * int MAGIC, int VERSION, long settings, int classes,
+ * classes x { string id, long fingerprint },
+ * terms x { string term, results },
+ * slots x { long offset+1 of the term, 0 for none },
+ * long offset of the slots, int slots, int MAGIC
+ * </pre>
+ * where a string is its int length and chars.
+ */
+class AlignmentStore {
+    static final Logger logger = Logger.getLogger
+        (AlignmentStore.class.getName());
+
+    static final int MAGIC = 0x43544153; // CTAS
+    static final int VERSION = 1;
+    static final int FOOTER = 16;
+    // get() of a term that isn't there
+    static final AlignmentResults MISSING = new AlignmentResults (null);
+
+    final File file;
+    final long settings;
+
+    // the store from before, if there's a usable one
+    ByteBuffer map;
+    int table, slots; // where the hash table starts and its size
+    final Set<String> stale = new HashSet<String>();
+    DictionaryIndex delta; // classes added or changed; null if none
+    boolean changed; // any class added, changed or removed
+
+    // the store being written
+    final File temp;
+    DataOutputStream out;
+    long written;
+    final Map<String, Long> terms = new HashMap<String, Long>();
+
+    long hits, misses, outdated;
+
+    AlignmentStore (File file, long settings,
+                    Map<String, Set<String>> dictionary) throws IOException {
+        this.file = file;
+        this.settings = settings;
+
+        Map<String, Long> classes = new TreeMap<String, Long>();
+        for (Map.Entry<String, Set<String>> me : dictionary.entrySet())
+            classes.put(me.getKey(), fingerprint (me.getValue()));
+
+        if (file.exists()) {
+            try {
+                open (classes, dictionary);
+            }
+            catch (IOException ex) {
+                logger.warning("Ignore "+file+": "+ex.getMessage());
+                map = null;
+            }
+        }
+
+        temp = new File (file.getPath()+".tmp");
+        out = new DataOutputStream
+            (new BufferedOutputStream (new FileOutputStream (temp)));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(settings);
+        out.writeInt(classes.size());
+        for (Map.Entry<String, Long> me : classes.entrySet()) {
+            writeString (out, me.getKey());
+            out.writeLong(me.getValue());
+        }
+        written = out.size();
+    }
+
+    void open (Map<String, Long> classes,
+               Map<String, Set<String>> dictionary) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile (file, "r");
+        try {
+            FileChannel fc = raf.getChannel();
+            if (fc.size() > Integer.MAX_VALUE || fc.size() < 20 + FOOTER)
+                throw new IOException ("bogus size "+fc.size());
+            map = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+        }
+        finally {
+            raf.close();
+        }
+
+        int end = map.limit();
+        if (map.getInt(0) != MAGIC || map.getInt(end - 4) != MAGIC)
+            throw new IOException ("not a store");
+        if (map.getInt(4) != VERSION)
+            throw new IOException ("version "+map.getInt(4));
+        if (map.getLong(8) != settings) {
+            logger.info(file+" is for other settings");
+            map = null;
+            return;
+        }
+        table = (int)map.getLong(end - FOOTER);
+        slots = map.getInt(end - 8);
+
+        ByteBuffer buf = map.duplicate();
+        buf.position(20);
+        Set<String> before = new HashSet<String>();
+        for (int n = map.getInt(16), k = 0; k < n; ++k) {
+            String id = AlignmentCache.getString(buf);
+            long fp = buf.getLong();
+            if (!classes.containsKey(id) || classes.get(id) != fp)
+                stale.add(id); // removed or changed
+            before.add(id);
+        }
+
+        Map<String, Set<String>> added = new HashMap<String, Set<String>>();
+        for (Map.Entry<String, Set<String>> me : dictionary.entrySet())
+            if (!before.contains(me.getKey()) || stale.contains(me.getKey()))
+                added.put(me.getKey(), me.getValue());
+        changed = !stale.isEmpty() || !added.isEmpty();
+        delta = added.isEmpty() ? null : new DictionaryIndex (added);
+        logger.info(file+": "+stale.size()+" class(es) removed or changed, "
+                    +added.size()+" added or changed");
+    }
+
+    /**
+     * The results of term from the store of before (null for none), or
+     * MISSING if it's not there
+     */
+    public AlignmentResults get (String term) {
+        ByteBuffer map = this.map;
+        if (map != null && slots > 0) {
+            for (int i = hash (term) & (slots - 1); ; i = (i+1) & (slots-1)) {
+                long at = map.getLong(table + 8*i);
+                if (at == 0)
+                    break;
+
+                ByteBuffer buf = map.duplicate();
+                buf.position((int)at - 1);
+                if (matches (buf, term)) {
+                    synchronized (this) {
+                        ++hits;
+                    }
+                    return AlignmentCache.decode(term, buf);
+                }
+            }
+        }
+        synchronized (this) {
+            ++misses;
+        }
+        return MISSING;
+    }
+
+    // a result from before that has to be aligned again
+    public synchronized void outdated () { ++outdated; }
+
+    // whether results matched to class id might not be right anymore
+    public boolean isStale (String id) { return stale.contains(id); }
+
+    static boolean matches (ByteBuffer buf, String term) {
+        int len = buf.getInt();
+        if (len != term.length())
+            return false;
+        for (int i = 0; i < len; ++i)
+            if (buf.getChar() != term.charAt(i))
+                return false;
+        return true;
+    }
+
+    /**
+     * Keep the results of term for the next run; only the first results
+     * of a term count
+     */
+    public synchronized void put (String term, AlignmentResults results)
+        throws IOException {
+        if (out == null || terms.containsKey(term))
+            return;
+
+        byte[] b = AlignmentCache.encode(results);
+        terms.put(term, written);
+        writeString (out, term);
+        out.write(b);
+        written += 4 + 2*term.length() + b.length;
+    }
+
+    /**
+     * Write out the hash table and replace the store of before
+     */
+    public synchronized void close () throws IOException {
+        if (out == null)
+            return;
+
+        int slots = 1;
+        while (slots < 2*terms.size())
+            slots <<= 1;
+        long[] offsets = new long[slots];
+        for (Map.Entry<String, Long> me : terms.entrySet()) {
+            int i = hash (me.getKey()) & (slots - 1);
+            while (offsets[i] != 0)
+                i = (i+1) & (slots - 1);
+            offsets[i] = me.getValue() + 1;
+        }
+
+        long table = written;
+        for (long at : offsets)
+            out.writeLong(at);
+        out.writeLong(table);
+        out.writeInt(slots);
+        out.writeInt(MAGIC);
+        out.close();
+        out = null;
+
+        map = null;
+        if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file))
+                throw new IOException ("Can't rename "+temp+" to "+file);
+        }
+        logger.info(terms.size()+" term(s) kept in "+file);
+    }
+
+    static int hash (String term) {
+        int h = term.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    static void writeString (DataOutputStream out, String s)
+        throws IOException {
+        out.writeInt(s.length());
+        out.writeChars(s);
+    }
+
+    // 64-bit FNV-1a
+    static long fingerprint (long h, String s) {
+        for (int i = 0; i < s.length(); ++i) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3l;
+        }
+        h ^= 0xffff; // a char no string has, to keep strings apart
+        return h * 0x100000001b3l;
+    }
+
+    static long fingerprint (Iterable<String> strings) {
+        long h = 0xcbf29ce484222325l;
+        for (String s : strings)
+            h = fingerprint (h, s);
+        return h;
+    }
+
+    public synchronized String toString () {
+        return "## "+hits+" term(s) found in "+file+" ("+outdated
+            +" outdated), "+misses+" not";
+    }
+}
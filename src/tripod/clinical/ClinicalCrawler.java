@@ -4,19 +4,21 @@ import java.util.*;
 import java.io.*;
 import java.util.zip.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
-import javax.xml.parsers.*;
-import org.xml.sax.helpers.*;
-import org.xml.sax.*;
 import static tripod.clinical.SmithWaterman.*;
 
-public class ClinicalCrawler 
-    extends DefaultHandler implements java.net.ContentHandlerFactory {
+public class ClinicalCrawler implements java.net.ContentHandlerFactory {
     static final Logger logger = Logger.getLogger
         (ClinicalCrawler.class.getName());
 
@@ -51,7 +53,7 @@ public class ClinicalCrawler
       
     static final String DOWNLOAD_URL = "http://clinicaltrials.gov/ct2/results/download?down_typ=fields&down_fmt=xml&down_stds=all&down_flds=shown&flds=a,b,c,d,e,f,g,h,i,j,k,l,m,n,o,p,q,r,s,t";
     
-    static class Study {
+    public static class Study {
         public String id;
 	public String title;
 	public List<String> conditions = new ArrayList<String>();
@@ -83,8 +85,27 @@ public class ClinicalCrawler
 
     static final Study DONE = new Study ();
 
+    /*
+     * StudyParser hands each study with interventions to this as soon
+     * as its </study> is seen; with more than one parse thread, from
+     * each of them
+     */
+    interface StudyHandler {
+        void study (Study s) throws InterruptedException;
+    }
+
+    /*
+     * acceptance rule for an alignment against the dictionary; see
+     * align(String)
+     */
+    static final double MIN_GLOBAL = .2;
+    static final double MIN_LOCAL = .9;
+    // dictionary entries batch scored at a time
+    static final int BATCH = 16 * LANES;
+
     class AlignWorker implements Runnable {
         BlockingQueue<Study> workQ;
+        SmithWaterman aligner = new SmithWaterman ();
 
         AlignWorker (BlockingQueue<Study> workQ) {
             this.workQ = workQ;
@@ -97,8 +118,15 @@ public class ClinicalCrawler
             try {
                 for (Study s; (s = workQ.take()) != DONE 
                          && !t.isInterrupted(); ) {
-                    Set<AlignmentRef> matches = align (s);
-                    output (s, matches);
+                    try {
+                        Set<AlignmentRef> matches = align (s, aligner);
+                        output (s, matches);
+                    }
+                    catch (RuntimeException ex) {
+                        // the worker is still needed for the rest
+                        logger.log(Level.SEVERE, name+": Can't align "
+                                   +s.id, ex);
+                    }
                 }
                 logger.info("## "+name+" finishes!");
             }
@@ -108,7 +136,10 @@ public class ClinicalCrawler
         }
     }
 
-    static class AlignmentRef implements Comparable<AlignmentRef> {
+    /**
+     * A term of a study aligned with a dictionary term of class id
+     */
+    public static class AlignmentRef implements Comparable<AlignmentRef> {
         String id;
         String term;
         String ref;
@@ -121,6 +152,14 @@ public class ClinicalCrawler
             this.result = result;
         }
 
+        public String getId () { return id; }
+        public String getTerm () { return term; }
+        public String getRef () { return ref; }
+        public Alignment getAlignment () { return result; }
+        public double getSimilarity () { return result.similarity(); }
+        public double getGlobal () { return result.global(); }
+        public double getLocal () { return result.local(); }
+
         public boolean equals (Object obj) {
             if (this == obj) return true;
             if (obj instanceof AlignmentRef) {
@@ -179,6 +218,20 @@ public class ClinicalCrawler
         public Set<AlignmentRef> results () { return results; }
         public int size () { return results.size(); }
 
+        /**
+         * Merge with the results of the scan of the dictionary entries
+         * that come right after the ones these are for, as if they were
+         * all scanned in one go; nothing after an exact match counts
+         */
+        public AlignmentResults append (AlignmentResults next) {
+            if (hasExact || next.results.isEmpty())
+                return this;
+            if (next.hasExact)
+                return next;
+            results.addAll(next.results);
+            return this;
+        }
+
         public void print (PrintStream ps) {
             ps.println("++++ \""+term+"\"");
             int i = 1;
@@ -195,14 +248,6 @@ public class ClinicalCrawler
         }
     }
 
-    /* 
-     * transient parsing variables
-     */
-    Study study;
-    boolean isDrug = false;
-    StringBuffer content = new StringBuffer ();
-    List<Study> studies = new ArrayList<Study>();
-
     static class ClinicalContentHandler extends java.net.ContentHandler {
 	public ClinicalContentHandler () {
 	}
@@ -232,32 +277,85 @@ public class ClinicalCrawler
 
     protected ConcurrentMap<String, Double> modifiers = 
         new ConcurrentHashMap<String, Double>();
+    // empty once a snapshot's loaded until getDictionary() needs it
     protected ConcurrentMap<String, Set<String>> dictionary = 
         new ConcurrentHashMap<String, Set<String>>();
+    // flattened dictionary that align() runs against; rebuilt by loadDict
+    protected volatile DictionaryIndex index = 
+        new DictionaryIndex (dictionary);
     protected BlockingQueue<Study> queue = 
         new ArrayBlockingQueue<Study>(1000);
 
+    // default bytes of term alignments kept on the heap
+    static final long CACHE_SIZE = 128L << 20;
+
     // term to AlignmentResults
-    protected ConcurrentMap<String, AlignmentResults> alignments = 
-        new ConcurrentHashMap<String, AlignmentResults>();
+    protected volatile AlignmentCache alignments = 
+        new AlignmentCache (CACHE_SIZE);
+    // the same kept on disk across runs; null for none
+    protected AlignmentStore store;
+    // the studies of the last run, for an incremental one; null for none
+    protected StudyIndex studies;
+    protected PrintStream deltaStream = null;
+
+    /*
+     * terms answered from the index, (term, entry) pairs scanned and how
+     * many of those each stage of align(String) left out
+     */
+    static class PruneStats {
+        final AtomicLong exactTerms = new AtomicLong ();
+        final AtomicLong pairs = new AtomicLong ();
+        final AtomicLong prunedLength = new AtomicLong ();
+        final AtomicLong prunedBigrams = new AtomicLong ();
+        final AtomicLong prunedHistogram = new AtomicLong ();
+        final AtomicLong prunedScore = new AtomicLong ();
+        final AtomicLong aligned = new AtomicLong ();
+
+        public String toString () {
+            return exactTerms+" exact term(s); "+pairs+" pair(s) scanned,"
+                +" pruned "+prunedLength+" on length, "+prunedBigrams
+                +" on bigrams, "+prunedHistogram+" on histogram, "
+                +prunedScore+" on score; "+aligned+" aligned";
+        }
+    }
+    // those of the dictionary, and of the changes to it in current()
+    protected final PruneStats stats = new PruneStats ();
+    protected final PruneStats deltaStats = new PruneStats ();
 
     protected PrintStream matchStream = System.out;
     protected PrintStream alignStream = null;
     protected int maxCandidates = 5;
+    // writes what the workers found on a thread of its own
+    protected final ResultWriter writer = new ResultWriter ();
+    protected final List<MatchListener> listeners = 
+        new CopyOnWriteArrayList<MatchListener>();
+    protected String downloadUrl = DOWNLOAD_URL;
 
     protected ExecutorService threadPool;
+    protected int threads;
+    // shards align(String) splits the dictionary scan of a term into
+    protected ForkJoinPool shardPool;
+    protected List<Future<?>> workers = new ArrayList<Future<?>>();
+    protected int parseThreads = 1; // zip entries parsed at a time
+    // Study fields StudyScanner builds; 0 to only parse with StudyParser
+    protected int scanFields = 0;
 
     public ClinicalCrawler () {
         this (1);
     }
 
     public ClinicalCrawler (int threads) {
-        threads = Math.max(1, threads);
+        this.threads = threads = Math.max(1, threads);
         threadPool = Executors.newFixedThreadPool(threads);
         for (int i = 0; i < threads; ++i) {
-            threadPool.submit(new AlignWorker (queue));
+            workers.add(threadPool.submit(new AlignWorker (queue)));
         }
-        URLConnection.setContentHandlerFactory(this);
+        writer.maxCandidates = maxCandidates;
+        writer.match = output (matchStream);
+        listeners.add(writer);
+        Thread t = new Thread (writer, "result-writer");
+        t.setDaemon(true);
+        t.start();
     }
 
     public int loadModifiers () throws IOException {
@@ -266,19 +364,143 @@ public class ClinicalCrawler
                               .getResourceAsStream(MODIFIER_RESOURCE));
     }
 
+    public int getThreads () { return threads; }
+
+    /**
+     * Split the dictionary scan of a term with many candidates into
+     * pieces aligned on up to this many cores, so that a long term
+     * (e.g., a title) doesn't hold up its study; 1 to scan serially
+     */
+    public void setShards (int shards) {
+        if (shardPool != null)
+            shardPool.shutdown();
+        shardPool = shards > 1 ? new ForkJoinPool (shards) : null;
+    }
+    public int getShards () { 
+        return shardPool != null ? shardPool.getParallelism() : 1;
+    }
+
+    public void setParseThreads (int parseThreads) {
+        this.parseThreads = Math.max(1, parseThreads);
+    }
+    public int getParseThreads () { return parseThreads; }
+
+    /**
+     * Scan the trials XML for just these StudyScanner fields (e.g.,
+     * StudyScanner.MATCH) and fall back to SAX for what the scanner
+     * doesn't expect; 0 for SAX only
+     */
+    public void setScanFields (int scanFields) { 
+        this.scanFields = scanFields; 
+    }
+    public int getScanFields () { return scanFields; }
+
+    StudySplitter splitter (int threads) {
+        StudySplitter splitter = new StudySplitter (threads);
+        splitter.setFields(scanFields);
+        return splitter;
+    }
+
+    static final String MATCH_HEADER = 
+        "CT_ID,MATCH_TERM,DICT_ID,DICT_TERM,SCORE,GLOBAL,LOCAL";
+    static final String DELTA_HEADER = "CHANGE,"+MATCH_HEADER;
+
+    /*
+     * The outputs are written by the writer thread, so they're to be
+     * set before the studies are parsed; the streams are flushed once
+     * parseCT() is done with them
+     */
     public void setMatchStream (PrintStream matchStream) {
         if (matchStream != null)
-            matchStream.println("CT_ID,MATCH_TERM,DICT_ID,DICT_TERM"
-                                +",SCORE,GLOBAL,LOCAL");
+            matchStream.println(MATCH_HEADER);
         this.matchStream = matchStream;
+        writer.match = output (matchStream);
     }
     public PrintStream getMatchStream () { return matchStream; }
 
+    public void setMatchChannel (WritableByteChannel channel) 
+        throws IOException {
+        writer.match = output (channel, MATCH_HEADER);
+        matchStream = null;
+    }
+
+    /**
+     * Where the changes to the match output since the last run go with
+     * openStudyIndex(); each row is that of the match output after
+     * ADDED, CHANGED (a new score) or REMOVED
+     */
+    public void setDeltaStream (PrintStream deltaStream) {
+        if (deltaStream != null)
+            deltaStream.println(DELTA_HEADER);
+        this.deltaStream = deltaStream;
+        writer.delta = output (deltaStream);
+    }
+    public PrintStream getDeltaStream () { return deltaStream; }
+
+    public void setDeltaChannel (WritableByteChannel channel) 
+        throws IOException {
+        writer.delta = output (channel, DELTA_HEADER);
+        deltaStream = null;
+    }
+
     public void setAlignStream (PrintStream alignStream) {
         this.alignStream = alignStream;
+        writer.align = output (alignStream);
     }
     public PrintStream getAlignStream () { return alignStream; }
 
+    /**
+     * Which alignments go to the alignment output; all by default
+     */
+    public void setTracePolicy (TracePolicy trace) {
+        writer.trace = trace != null ? trace : TracePolicy.ALL;
+    }
+    public TracePolicy getTracePolicy () { return writer.trace; }
+
+    /**
+     * Hand the matches of each study to l as it's aligned, along with
+     * the match, alignment and delta outputs (which are written by a
+     * listener of their own); setMatchStream(null) to do without those.
+     * The studies that openStudyIndex() keeps as they were aren't
+     * aligned and so don't get to the listeners.
+     */
+    public void addMatchListener (MatchListener l) { listeners.add(l); }
+    public void removeMatchListener (MatchListener l) { 
+        listeners.remove(l); 
+    }
+
+    /**
+     * Also write the match output to file as a binary table (see
+     * MatchTable), which is done once the crawl is; null for none
+     */
+    public void setMatchTable (File file) throws IOException {
+        writer.table = file != null ? new MatchTableWriter (file) : null;
+    }
+
+    public void setAlignChannel (WritableByteChannel channel) 
+        throws IOException {
+        writer.align = output (channel, null);
+        alignStream = null;
+    }
+
+    static ResultWriter.Output output (PrintStream ps) {
+        return ps != null ? new ResultWriter.Output 
+            (Channels.newChannel(ps), ps) : null;
+    }
+
+    static ResultWriter.Output output (WritableByteChannel channel, 
+                                       String header) throws IOException {
+        if (channel == null)
+            return null;
+        if (header != null) {
+            ByteBuffer buf = ByteBuffer.wrap
+                ((header+ResultWriter.EOL).getBytes());
+            while (buf.hasRemaining())
+                channel.write(buf);
+        }
+        return new ResultWriter.Output (channel, null);
+    }
+
     public int loadModifiers (InputStream is) throws IOException {
         BufferedReader br = new BufferedReader (new InputStreamReader (is));
         int lines = 1;
@@ -340,10 +562,100 @@ public class ClinicalCrawler
             }
         }
 
-        logger.info("Dictionary loaded..."+dictionary.size());
+        index = new DictionaryIndex (dictionary);
+        logger.info("Dictionary loaded..."+dictionary.size()
+                    +" ("+index.size()+" terms)");
         return dictionary.size();
     }
 
+    static final int SNAPSHOT_MAGIC = 0x43544453; // CTDS
+    static final int SNAPSHOT_VERSION = 1;
+
+    /**
+     * Write the dictionary and modifiers as loaded, along with the index
+     * built from them, to a snapshot that loadSnapshot() maps back in
+     * without parsing or indexing anything again:
+     * <pre>
+     * int MAGIC, int VERSION, int modifiers,
+     * modifiers x { string token, double weight }, the DictionaryIndex
+     * </pre>
+     * where a string is its int length and chars.
+     */
+    public void compile (File file) throws IOException {
+        DataOutputStream out = new DataOutputStream
+            (new BufferedOutputStream (new FileOutputStream (file)));
+        try {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(modifiers.size());
+            for (Map.Entry<String, Double> me : modifiers.entrySet()) {
+                AlignmentStore.writeString(out, me.getKey());
+                out.writeDouble(me.getValue());
+            }
+            index.write(out);
+        }
+        finally {
+            out.close();
+        }
+        logger.info(index.classes.length+" classes ("+index.size()
+                    +" terms) and "+modifiers.size()
+                    +" modifiers compiled to "+file);
+    }
+
+    public static boolean isSnapshot (File file) throws IOException {
+        DataInputStream in = new DataInputStream (new FileInputStream (file));
+        try {
+            return file.length() >= 8 && in.readInt() == SNAPSHOT_MAGIC;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Load the dictionary and modifiers from a snapshot written by
+     * compile() instead of loadDict() and loadModifiers()
+     */
+    public int loadSnapshot (File file) throws IOException {
+        ByteBuffer map;
+        RandomAccessFile raf = new RandomAccessFile (file, "r");
+        try {
+            FileChannel fc = raf.getChannel();
+            map = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+        }
+        finally {
+            raf.close();
+        }
+
+        if (map.limit() < 12 || map.getInt() != SNAPSHOT_MAGIC)
+            throw new IOException (file+" is not a dictionary snapshot");
+        int version = map.getInt();
+        if (version != SNAPSHOT_VERSION)
+            throw new IOException (file+" is a snapshot of version "
+                                   +version+"; compile it again");
+
+        modifiers.clear();
+        for (int n = map.getInt(); n > 0; --n) {
+            String token = AlignmentCache.getString(map);
+            modifiers.put(token, map.getDouble());
+        }
+        dictionary.clear();
+        index = new DictionaryIndex (map);
+        logger.info("Snapshot loaded..."+index.classes.length+" ("
+                    +index.size()+" terms), "+modifiers.size()+" modifiers");
+        return index.classes.length;
+    }
+
+    /**
+     * The dictionary by class, which is rebuilt from the index the
+     * first time it's needed after loadSnapshot()
+     */
+    protected synchronized Map<String, Set<String>> getDictionary () {
+        if (dictionary.isEmpty() && index.size() > 0)
+            dictionary.putAll(index.dictionary());
+        return dictionary;
+    }
+
     public java.net.ContentHandler createContentHandler (String mimetype) {
         if (mimetype.equals("application/zip")) {
             return new ClinicalContentHandler ();
@@ -351,67 +663,330 @@ public class ClinicalCrawler
         return null;
     }
 
-    public File download () throws Exception {
-        URL url = new URL (DOWNLOAD_URL);
-        HttpURLConnection con = (HttpURLConnection)url.openConnection();
+    public void setDownloadUrl (String downloadUrl) {
+        this.downloadUrl = downloadUrl;
+    }
+    public String getDownloadUrl () { return downloadUrl; }
+
+    protected URLConnection connect () throws IOException {
+        URL url = new URL (downloadUrl);
+        URLConnection con = url.openConnection();
         int timeout = 1000000000;
         con.setConnectTimeout(timeout);
         con.setReadTimeout(timeout);
 
-        logger.info("## Downloading clinical trials...");
-        return (File)con.getContent();
+        logger.info("## Downloading clinical trials from "+url+"...");
+        return con;
+    }
+
+    /*
+     * the handler is used as is rather than through the content handler
+     * factory, which can only be set once in a JVM and so isn't up to
+     * the crawler to set
+     */
+    public File download () throws Exception {
+        return (File)new ClinicalContentHandler ().getContent(connect());
+    }
+
+    /**
+     * Download, parse and align the trials without a temp file; the zip
+     * is parsed entry by entry straight off the connection as it comes
+     * in and, if archive isn't null, also written there as is
+     */
+    public void crawl (File archive) throws Exception {
+        InputStream is = new BufferedInputStream 
+            (connect().getInputStream());
+        OutputStream os = null;
+        if (archive != null) {
+            os = new BufferedOutputStream (new FileOutputStream (archive));
+            is = new TeeInputStream (is, os);
+        }
+
+        try {
+            parseCT (is);
+            // the rest of the zip (its central directory) for the archive
+            if (os != null) {
+                byte[] buf = new byte[8192];
+                while (is.read(buf, 0, buf.length) > 0)
+                    ;
+            }
+        }
+        finally {
+            is.close();
+            if (os != null)
+                os.close();
+        }
     }
 
+    /*
+     * copies everything read from the stream to another
+     */
+    static class TeeInputStream extends FilterInputStream {
+        OutputStream os;
+
+        TeeInputStream (InputStream is, OutputStream os) {
+            super (is);
+            this.os = os;
+        }
+
+        public int read () throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                os.write(b);
+            return b;
+        }
+
+        public int read (byte[] b, int off, int len) throws IOException {
+            int nb = super.read(b, off, len);
+            if (nb > 0)
+                os.write(b, off, nb);
+            return nb;
+        }
+
+        public long skip (long n) throws IOException {
+            byte[] buf = new byte[(int)Math.min(n, 8192)];
+            long skipped = 0;
+            for (int nb; skipped < n && (nb = read 
+                     (buf, 0, (int)Math.min(buf.length, n - skipped))) > 0; )
+                skipped += nb;
+            return skipped;
+        }
+
+        public boolean markSupported () { return false; }
+    }
+
+    /**
+     * Parse and align the studies in the zip (or XML) file; the studies go to
+     * the workers as they're parsed, with the parser held back by the
+     * bounded queue whenever the workers fall behind. Returns when the
+     * workers are done with every study, after which the crawler can't
+     * take any more.
+     */
     public void parseCT (File file) throws Exception {
-	ZipFile zf = new ZipFile (file);
-	for (Enumeration e = zf.entries(); e.hasMoreElements();) {
-	    ZipEntry zip = (ZipEntry)e.nextElement();
-	    parse (zf.getInputStream(zip));
-	    for (Study s : studies)
-                queue.put(s);
+        try {
+            parse (file, enqueue);
+        }
+        finally {
+            finish ();
+        }
+    }
+
+    /**
+     * Same as parseCT(File) for a zip read off the stream, e.g., as
+     * it's being downloaded
+     */
+    public void parseCT (InputStream zip) throws Exception {
+        try {
+            parse (new ZipInputStream (zip), enqueue);
+        }
+        finally {
+            finish ();
+        }
+    }
+
+    protected final StudyHandler enqueue = new StudyHandler () {
+            public void study (Study s) throws InterruptedException {
+                StudyIndex index = studies;
+                List<ResultWriter.Row> rows = index != null 
+                    ? index.unchanged(s) : null;
+                if (rows != null)
+                    writer.put(s.id, rows);
+                else
+                    queue.put(s);
+            }
+        };
+
+    // wait for the workers to be done with what's been queued
+    protected void finish () throws Exception {
+        // one for each worker
+        for (int i = 0; i < workers.size(); ++i)
             queue.put(DONE);
-	}
+
+        for (Future<?> f : workers)
+            f.get();
+        writer.flush();
     }
 
     public Map<String, Integer> countTerms (File file) throws Exception {
-	ZipFile zf = new ZipFile (file);
-
         final Map<String, Integer> counts = new HashMap<String, Integer>();
-        
-	for (Enumeration e = zf.entries(); e.hasMoreElements();) {
-	    ZipEntry zip = (ZipEntry)e.nextElement();
-	    parse (zf.getInputStream(zip));
-	    for (Study s : studies) 
-                for (String term : s.interventions) {
-                    String[] toks = term.split("[\\s]+");
-                    for (String t : toks) {
-                        Integer c = counts.get(t);
-                        counts.put(t, c!=null ? c+1:1);
+        StudyHandler count = new StudyHandler () {
+                public void study (Study s) {
+                    synchronized (counts) {
+                        for (String term : s.interventions) {
+                            String[] toks = term.split("[\\s]+");
+                            for (String t : toks) {
+                                Integer c = counts.get(t);
+                                counts.put(t, c!=null ? c+1:1);
+                            }
+                        }
                     }
                 }
-        }
+            };
+        parse (file, count);
 
         logger.info("## "+counts.size()+" unique tokens!");
         return counts;
     }
 
+    /**
+     * Parse a zip file of trials XML or, if its name ends with .xml, a
+     * trials XML file itself; the latter is split across parseThreads
+     * cores (see StudySplitter)
+     */
+    protected void parse (File file, StudyHandler handler) throws Exception {
+        if (file.getName().toLowerCase().endsWith(".xml")) {
+            splitter (parseThreads).parse(file, handler);
+            return;
+        }
+
+        ZipFile zf = new ZipFile (file);
+        try {
+            parse (zf, handler);
+        }
+        finally {
+            zf.close();
+        }
+    }
+
+    /**
+     * Parse the entries of the zip stream one after the other, each
+     * split across parseThreads cores if there's more than one
+     */
+    protected void parse (ZipInputStream zis, StudyHandler handler) 
+        throws Exception {
+        for (ZipEntry zip; (zip = zis.getNextEntry()) != null; ) {
+            if (zip.isDirectory())
+                continue;
+
+            // the parsers close what they're given
+            InputStream is = new FilterInputStream (zis) {
+                    public void close () {}
+                };
+            if (scanFields != 0 || parseThreads > 1)
+                splitter(parseThreads).parse(is, handler);
+            else
+                new StudyParser (handler).parse(is);
+        }
+    }
+
+    /**
+     * Parse the entries of the zip file, up to parseThreads of them at
+     * a time with a StudyParser each, all handing their studies to the
+     * same handler. Returns when every entry is parsed; the first
+     * entry that fails stops the rest. A lone entry, as in a dump with
+     * everything under one search_results, is split across the threads
+     * instead, with its studies handed over in document order. With
+     * scanFields set, every entry goes through a StudySplitter so that
+     * it's scanned in chunks.
+     */
+    protected void parse (final ZipFile zf, final StudyHandler handler) 
+        throws Exception {
+        if (zf.size() == 1 && parseThreads > 1) {
+            ZipEntry zip = zf.entries().nextElement();
+            splitter (parseThreads).parse(zf.getInputStream(zip), handler);
+            return;
+        }
+
+        ExecutorService parsers = Executors.newFixedThreadPool(parseThreads);
+        try {
+            List<Future<Integer>> entries = new ArrayList<Future<Integer>>();
+            for (Enumeration e = zf.entries(); e.hasMoreElements();) {
+                final ZipEntry zip = (ZipEntry)e.nextElement();
+                entries.add(parsers.submit(new Callable<Integer>() {
+                        public Integer call () throws Exception {
+                            InputStream is = zf.getInputStream(zip);
+                            return scanFields != 0 
+                                ? splitter(1).parse(is, handler)
+                                : new StudyParser (handler).parse(is);
+                        }
+                    }));
+            }
+
+            for (Future<Integer> f : entries) {
+                try {
+                    f.get();
+                }
+                catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    throw cause instanceof Exception 
+                        ? (Exception)cause : ex;
+                }
+            }
+        }
+        finally {
+            parsers.shutdownNow();
+        }
+    }
+
     public void shutdown () {
         threadPool.shutdownNow();
+        if (shardPool != null)
+            shardPool.shutdownNow();
+        logger.info(getPruneStats ());
+        logger.info(getCacheStats ());
+        if (studies != null) {
+            try {
+                closeStudyIndex ();
+            }
+            catch (Exception ex) {
+                logger.log(Level.SEVERE, "Can't save studies", ex);
+            }
+        }
+        try {
+            writer.flush();
+            writer.stop();
+        }
+        catch (InterruptedException ex) {
+            logger.warning("Results might not all be written!");
+        }
+        if (writer.table != null) {
+            try {
+                writer.table.close();
+            }
+            catch (IOException ex) {
+                logger.log(Level.SEVERE, "Can't write match table", ex);
+            }
+        }
+        if (store != null) {
+            logger.info(store.toString());
+            try {
+                store.close();
+            }
+            catch (IOException ex) {
+                logger.log(Level.SEVERE, "Can't save alignments", ex);
+            }
+        }
+    }
+
+    public String getCacheStats () {
+        return alignments.toString();
+    }
+
+    /**
+     * Keep the alignments of up to about this many bytes worth of terms
+     * on the heap and, if offHeapBytes isn't 0, that many more bytes of
+     * them serialized off the heap; what's there already is dropped
+     */
+    public void setCacheSize (long bytes, long offHeapBytes) {
+        alignments = new AlignmentCache (bytes, offHeapBytes);
     }
 
-    protected Set<AlignmentRef> align (Study s) {
+    public String getPruneStats () {
+        return "## "+stats+(deltaStats.pairs.get() == 0 ? ""
+                            : "; against the changed classes: "+deltaStats);
+    }
+
+    protected Set<AlignmentRef> align (Study s) 
+        throws InterruptedException {
+        return align (s, new SmithWaterman ());
+    }
+
+    protected Set<AlignmentRef> align (Study s, SmithWaterman aligner) 
+        throws InterruptedException {
         Set<AlignmentRef> all = new TreeSet<AlignmentRef>();
 
         for (String term : s.interventions) {
-            AlignmentResults results = alignments.get(term);
-            if (results == null) {
-                results = align (term);
-                if (results != null) {
-                    alignments.putIfAbsent(term, results);
-                    //logger.info("term \""+term+"\" matched!");
-                }
-            }
-
+            AlignmentResults results = lookup (term, aligner);
             if (results != null) {
                 all.addAll(results.results());
             }
@@ -420,9 +995,8 @@ public class ClinicalCrawler
         // nothing found for this study based on the interventions
         // so as the last resort we try the title
         if (all.isEmpty()) {
-            AlignmentResults results = align (s.title);
+            AlignmentResults results = lookup (s.title, aligner);
             if (results != null) {
-                alignments.putIfAbsent(s.title, results);
                 all.addAll(results.results());
             }
         }
@@ -446,43 +1020,317 @@ public class ClinicalCrawler
         return all;
     }
 
+    /**
+     * The alignments of term, from the cache if it's been aligned (or
+     * is being aligned by another thread, which is then waited on),
+     * otherwise from the store or by aligning it here
+     */
+    protected AlignmentResults lookup (final String term, 
+                                       final SmithWaterman aligner) 
+        throws InterruptedException {
+        return alignments.get(term, new Callable<AlignmentResults> () {
+                public AlignmentResults call () throws IOException {
+                    return resolve (term, aligner);
+                }
+            });
+    }
+
+    /**
+     * Keep the alignments of the terms in file, which has those of
+     * the last run, if any, to be used instead of aligning them again
+     * where the dictionary hasn't changed in a way that matters; to be
+     * called once the dictionary and modifiers are loaded. The file is
+     * written out on shutdown.
+     */
+    public void openStore (File file) throws IOException {
+        store = new AlignmentStore (file, settings (), getDictionary ());
+    }
+
+    /**
+     * Only align the studies that are new or have changed since the
+     * run that left file, if any, with the same dictionary and settings;
+     * the others get their match output of then. The changes to the
+     * match output go to the delta stream. To be called once the
+     * dictionary and modifiers are loaded; file is written out on
+     * shutdown.
+     */
+    public void openStudyIndex (File file) throws IOException {
+        List<String> s = new ArrayList<String>();
+        s.add(String.valueOf(settings ()));
+        s.add(String.valueOf(maxCandidates));
+        for (Map.Entry<String, Set<String>> me 
+                 : new TreeMap<String, Set<String>>
+                     (getDictionary ()).entrySet()) {
+            s.add(me.getKey());
+            s.addAll(me.getValue());
+            s.add("");
+        }
+        studies = new StudyIndex (file, AlignmentStore.fingerprint(s));
+        writer.studies = studies;
+    }
+
+    // the studies of before that are gone, then save this run's
+    protected void closeStudyIndex () 
+        throws IOException, InterruptedException {
+        for (Map.Entry<String, List<ResultWriter.Row>> me 
+                 : studies.removed().entrySet())
+            writer.removed(me.getKey(), me.getValue());
+        writer.flush();
+        studies.save();
+    }
+
+    // fingerprint of what aligning a term depends on but the dictionary
+    long settings () {
+        List<String> s = new ArrayList<String>();
+        for (Map.Entry<String, Double> me 
+                 : new TreeMap<String, Double>(modifiers).entrySet())
+            s.add(me.getKey()+"="+me.getValue());
+        s.add(MIN_GLOBAL+" "+MIN_LOCAL+" "+SmithWaterman.MAX_ALIGNMENTS
+              +" "+SmithWaterman.DEFAULT_MIN_ALIGNMENT);
+        return AlignmentStore.fingerprint(s);
+    }
+
+    protected AlignmentResults resolve (String term, SmithWaterman aligner) 
+        throws IOException {
+        AlignmentStore store = this.store;
+        if (store == null)
+            return align (term, aligner);
+
+        AlignmentResults results = store.get(term);
+        if (results == AlignmentStore.MISSING)
+            results = align (term, aligner);
+        else if (!current (store, term, results, aligner)) {
+            store.outdated();
+            results = align (term, aligner);
+        }
+        store.put(term, results);
+        return results;
+    }
+
+    /*
+     * whether the results of term from the store are what aligning it
+     * against the dictionary now gives: none of them are to a class
+     * that's changed since and the term doesn't align with any of the
+     * classes added (or changed). The first exact match in dictionary
+     * order might be another one whenever the dictionary has changed.
+     */
+    boolean current (AlignmentStore store, String term, 
+                     AlignmentResults results, SmithWaterman aligner) {
+        if (results != null) {
+            if (results.hasExact() && store.changed)
+                return false;
+            for (AlignmentRef ar : results.results())
+                if (store.isStale(ar.id))
+                    return false;
+        }
+        return store.delta == null 
+            || align (term, store.delta, aligner, deltaStats) == null;
+    }
+
+    /**
+     * smallest alignment score with a global similarity above MIN_GLOBAL
+     * for sequences of length n and m; since an alignment never scores
+     * above the best local score, pairs below this can't be accepted
+     */
+    static int minScore (int n, int m) {
+        int len = n + m, score = (int)(MIN_GLOBAL * len);
+        while ((double)score/len <= MIN_GLOBAL)
+            ++score;
+        return score;
+    }
+
+    /**
+     * Minimum number of matches an alignment of a term of length n with
+     * a dictionary term of each length up to maxLength needs to reach
+     * minScore; matches are at most as many as the two terms have case
+     * folded characters in common, and at most the length of either.
+     */
+    static int[] minMatches (int n, int maxLength) {
+        int[] bounds = new int[maxLength+1];
+        for (int m = 0; m <= maxLength; ++m)
+            bounds[m] = (minScore (n, m) + 1) / 2;
+        return bounds;
+    }
+
+    /**
+     * Minimum number of case folded bigrams a dictionary term of each
+     * length up to maxLength has to share with a term of length n for
+     * any alignment of the two to be accepted. An alignment with M
+     * matches and E mismatches and gaps has its matches in at most E+1
+     * diagonal runs, so at least M-E-1 pairs of adjacent matches each
+     * give a bigram the two terms share. (A merged alignment only joins
+     * diagonally adjacent ends; any other end pair has a side given up
+     * as a gap.) Acceptance needs 2M-E >= minScore(n,m) and a local
+     * similarity of over MIN_LOCAL/maxMult, i.e., E < cM with
+     * c = 2 - 2*MIN_LOCAL/maxMult; together M-E > (1-c)minScore/(2-c).
+     */
+    static int[] minShared (int n, int maxLength, double maxMult) {
+        int[] need = new int[maxLength+1];
+        double c = 2. - 2.*MIN_LOCAL/maxMult;
+        if (c < 1.) {
+            for (int m = 0; m <= maxLength; ++m) {
+                double bound = (1.-c)*minScore (n, m)/(2.-c) - 1.;
+                // strictly above the bound, erring on the low side
+                need[m] = (int)Math.floor(bound - 1e-9) + 1;
+            }
+        }
+        return need;
+    }
+
+    // the largest multiplier align(String) can apply to a local score
+    double maxMultiplier () {
+        double max = 1.;
+        for (Double mult : modifiers.values())
+            max = Math.max(max, mult);
+        return max;
+    }
+
     protected AlignmentResults align (String term) {
-        SmithWaterman aligner = new SmithWaterman ();
+        return align (term, new SmithWaterman ());
+    }
+
+    protected boolean accept (Alignment aln) {
+        // check to see if the extent of this alignment is
+        // a modifier
+        String token = aln.token1().toLowerCase();
+        Double mult = modifiers.get(token);
+        if (mult == null) {
+            try {
+                Integer.parseInt(token);
+                mult = 0.; // don't allow just a number
+            }
+            catch (NumberFormatException ex) {
+                mult = 1.; // allow
+            }
+        }
+
+        double score = mult* aln.local();
+        // a balance between global & local
+        return aln.global() > MIN_GLOBAL && score > MIN_LOCAL;
+    }
+
+    /**
+     * A term that's in the dictionary up to case is answered from the
+     * index without a scan. Only such a term can align with a similarity
+     * of 1, so its first entry in dictionary order is where the full
+     * scan would stop, with the same diagonal alignment and nothing else
+     * in the results. Returns null if the full scan is needed.
+     */
+    protected AlignmentResults exact (String term, DictionaryIndex dict) {
+        int entry = dict.exact(term);
+        if (entry < 0 || term.length() == 0)
+            return null;
+
+        int[] diagonal = new int[2*term.length()];
+        for (int i = 0; i < term.length(); ++i)
+            diagonal[2*i] = diagonal[2*i+1] = i;
+        String s = dict.term(entry);
+        Alignment aln = new Alignment (term, s, diagonal);
+        if (aln.similarity() < 1. || !accept (aln))
+            return null; // e.g., a modifier; no exact match then
+
         AlignmentResults results = new AlignmentResults (term);
-        // align the given term against the dictionary
-        for (Map.Entry<String, Set<String>> me : dictionary.entrySet()) {
-            String key = me.getKey();
-            for (String s : me.getValue()) {
+        results.add(new AlignmentRef (dict.classOf(entry), term, s, aln));
+        return results;
+    }
+
+    protected AlignmentResults align (String term, SmithWaterman aligner) {
+        return align (term, index, aligner, stats);
+    }
+
+    protected AlignmentResults align (String term, DictionaryIndex dict,
+                                      SmithWaterman aligner, 
+                                      PruneStats stats) {
+        AlignmentResults results = exact (term, dict);
+        if (results != null) {
+            stats.exactTerms.incrementAndGet();
+            return results;
+        }
+
+        /*
+         * align the given term against the dictionary; only entries
+         * sharing enough bigrams with the term are candidates, those are
+         * batch scored and only the ones whose score can be accepted get
+         * a full alignment, still in dictionary order
+         */
+        int n = term.length();
+        long[] pruned = new long[3];
+        int[] cands = dict.candidates
+            (term, minMatches (n, dict.maxLength), 
+             minShared (n, dict.maxLength, maxMultiplier ()), pruned);
+        stats.pairs.addAndGet(dict.size());
+        stats.prunedLength.addAndGet(pruned[0]);
+        stats.prunedBigrams.addAndGet(pruned[1]);
+        stats.prunedHistogram.addAndGet(pruned[2]);
+
+        ForkJoinPool pool = shardPool;
+        if (pool != null && cands.length > BATCH)
+            results = pool.invoke(new AlignShard 
+                                  (term, dict, cands, 0, cands.length, 
+                                   Math.max(BATCH, cands.length 
+                                            / (4*pool.getParallelism())),
+                                   aligner, new AtomicInteger 
+                                   (cands.length), stats));
+        else
+            results = align (term, dict, cands, 0, cands.length, 
+                             aligner, null, stats);
+
+        return results.size() > 0 ? results : null;
+    }
+
+    /**
+     * Align term against the candidate entries cands[from,to) in order
+     * and stop at the first exact match, or at any exact match before
+     * this range found in the mean time (exactAt, the smallest index of
+     * one, if not null), in which case what's returned doesn't count
+     */
+    protected AlignmentResults align (String term, DictionaryIndex dict, 
+                                      int[] cands, int from, int to, 
+                                      SmithWaterman aligner, 
+                                      AtomicInteger exactAt,
+                                      PruneStats stats) {
+        AlignmentResults results = new AlignmentResults (term);
+        int[] entries = new int[BATCH], scores = new int[BATCH];
+        int[] minScores = new int[BATCH];
+        boolean bounded = aligner.isBounded();
+        int n = term.length();
+
+        for (int next = from; next < to; ) {
+            int count = 0, first = next;
+            while (count < BATCH && next < to) {
+                minScores[count] = minScore (n, dict.length(cands[next]));
+                entries[count++] = cands[next++];
+            }
+            if (bounded)
+                aligner.score(term, dict.text, dict.folded, dict.offsets, 
+                              entries, count, minScores, scores);
+
+            for (int k = 0; k < count; ++k) {
+                // an exact match before here makes the rest moot
+                if (exactAt != null && first + k > exactAt.get())
+                    return results;
+
+                int entry = entries[k];
+                if (bounded && scores[k] < minScores[k]) {
+                    stats.prunedScore.incrementAndGet();
+                    continue;
+                }
+                stats.aligned.incrementAndGet();
+
+                String key = dict.classOf(entry), s = dict.term(entry);
                 //System.out.println("## \""+term+"\" vs \""+s+"\"");
 
-                aligner.align(term, s);
+                aligner.align(term, s, dict.folded, dict.offsets[entry]);
                 for (Enumeration<Alignment> en = aligner.alignments();
                      en.hasMoreElements();) {
                     Alignment aln = en.nextElement();
-                    
-                    // check to see if the extent of this alignment is
-                    // a modifier
-                    String token = aln.token1().toLowerCase();
-                    Double mult = modifiers.get(token);
-                    if (mult == null) {
-                        try {
-                            Integer.parseInt(token);
-                            mult = 0.; // don't allow just a number
-                        }
-                        catch (NumberFormatException ex) {
-                            mult = 1.; // allow
-                        }
-                    }
-                    
-                    double score = mult* aln.local();
-                    // a balance between global & local
-                    if (aln.global() > .2 && score > 0.9) {
+                    if (accept (aln)) {
                         /*
                         System.out.println("++++ \""+term+"\"");
                         System.out.println("---- \""+s+"\"");
                         System.out.println(aln);
                         System.out.println
-                            (me.getKey()+" ["
+                            (key+" ["
                              +String.format("%1$.3f,", aln.global())
                              +String.format("%1$.3f,", aln.local())
                              +String.format("%1$.3f]", aln.similarity()));
@@ -496,172 +1344,264 @@ public class ClinicalCrawler
                 // don't bother with anything else when we have exact match
                 if (results.hasExact()) {
                     //logger.info("## Exact match found for \""+term+"\"!");
+                    if (exactAt != null) {
+                        for (int at; (at = exactAt.get()) > first + k
+                                 && !exactAt.compareAndSet(at, first + k); )
+                            ;
+                    }
                     return results;
                 }
             }
         }
 
-        return results.size() > 0 ? results : null;
+        return results;
     }
 
-    synchronized void output (Study s, Set<AlignmentRef> matches) {
-        if (matches == null || matches.isEmpty()) {
-            if (matchStream != null) {
-                for (String d : s.interventions) {
-                    matchStream.println(s.id+",\""+d+"\",,,,,,");
-                }
-            }
-            return;
+    /*
+     * The dictionary scan of a term split in halves until a piece has
+     * no more than grain candidates, each aligned with an aligner of its
+     * own set up like the caller's; the pieces are merged back in order
+     */
+    class AlignShard extends RecursiveTask<AlignmentResults> {
+        private static final long serialVersionUID = 1L;
+
+        final String term;
+        final DictionaryIndex dict;
+        final int[] cands;
+        final int from, to, grain;
+        final SmithWaterman aligner;
+        final AtomicInteger exactAt;
+        final PruneStats stats;
+
+        AlignShard (String term, DictionaryIndex dict, int[] cands, 
+                    int from, int to, int grain, SmithWaterman aligner,
+                    AtomicInteger exactAt, PruneStats stats) {
+            this.term = term;
+            this.dict = dict;
+            this.cands = cands;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.aligner = aligner;
+            this.exactAt = exactAt;
+            this.stats = stats;
         }
-        
-        Set<String> unique = new HashSet<String>();
-        int size = Math.max(s.interventions.size(), maxCandidates);
-
-        for (AlignmentRef ar : matches) {
-            if (alignStream != null) {
-                alignStream.println("++++ "+String.format("%1$12s",s.id)
-                                    +": \""+ar.term+"\"");
-                alignStream.println("---- "+String.format("%1$12s",ar.id)
-                                    +": \""+ar.ref+"\"");
-                alignStream.println(ar.result);
-                alignStream.println
-                    ("["+String.format("%1$.3f,", ar.result.global())
-                     +String.format("%1$.3f,", ar.result.local())
-                     +String.format("%1$.3f]", ar.result.similarity()));
-            }
-
-            if (matchStream != null) {
-                if (unique.add(ar.id) && unique.size() <= size) {
-                    matchStream.println
-                        (s.id+",\""+ar.term+"\","
-                         +ar.id+","
-                         +"\""+ar.ref+"\","
-                         +String.format("%1$.3f", ar.result.similarity())+","
-                         +String.format("%1$.3f", ar.result.global())+","
-                         +String.format("%1$.3f", ar.result.local()));
-                }
+
+        protected AlignmentResults compute () {
+            if (to - from <= grain) {
+                SmithWaterman sw = new SmithWaterman (aligner.getScore());
+                sw.setBand(aligner.getBand());
+                sw.setMinAlignment(aligner.getMinAlignment());
+                sw.setMaxAlignments(aligner.getMaxAlignments());
+                return align (term, dict, cands, from, to, sw, exactAt,
+                              stats);
             }
+
+            int mid = (from + to) >>> 1;
+            AlignShard left = new AlignShard 
+                (term, dict, cands, from, mid, grain, aligner, exactAt,
+                 stats);
+            AlignShard right = new AlignShard
+                (term, dict, cands, mid, to, grain, aligner, exactAt,
+                 stats);
+            right.fork();
+            AlignmentResults results = left.compute();
+            return results.append(right.join());
         }
     }
 
-    protected void parse (InputStream is) throws Exception {
-        studies.clear();
-        SAXParserFactory.newInstance().newSAXParser().parse(is, this);
+    void output (Study s, Set<AlignmentRef> matches) 
+        throws InterruptedException {
+        for (MatchListener l : listeners) {
+            try {
+                l.matched(s, matches);
+            }
+            catch (RuntimeException ex) {
+                logger.log(Level.SEVERE, "Listener "+l+" failed on "+s.id, ex);
+            }
+        }
     }
 
-    public void startDocument () {
+    static void usage () {
+        System.err.println
+            ("Usage: ClinicalCrawler [-option value]... [DICT [FILE]]\n"
+             +"where FILE is a zip (or .xml) of trials, downloaded if not "
+             +"given, and the options are\n"
+             +"  -threads N     align threads (2)\n"
+             +"  -shards N      cores a term's dictionary scan is split "
+             +"across (1)\n"
+             +"  -parsers N     parse threads (1)\n"
+             +"  -cache MB      term alignments kept on the heap (128)\n"
+             +"  -offheap MB    and off the heap (0)\n"
+             +"  -store FILE    keep the term alignments in FILE for the "
+             +"next run\n"
+             +"  -studies FILE  only align the studies changed since the "
+             +"run that left FILE\n"
+             +"                 and write the changes to crawler_delta.csv\n"
+             +"  -compile FILE  compile DICT and the modifiers to a "
+             +"snapshot in FILE and quit;\n"
+             +"                 DICT can then be the snapshot\n"
+             +"  -table FILE    also write the matches to FILE as a "
+             +"binary table\n"
+             +"  -trace SPEC    alignments written to crawler_align.txt: "
+             +"all (default),\n"
+             +"                 off or any of ids=NCT ids|@file, "
+             +"classes=classes|@file,\n"
+             +"                 band=min:max (similarity), rate=fraction; "
+             +"e.g.,\n"
+             +"                 band=.85:.95,rate=.01\n"
+             +"  -scan BOOL     scan the XML for just the fields matched "
+             +"(false)\n"
+             +"  -url URL       where to download the trials from\n"
+             +"  -stream BOOL   parse the download as it comes in instead "
+             +"of from a temp file (false)\n"
+             +"  -archive FILE  with -stream, also save the download here");
+        System.exit(1);
     }
 
-    public void endDocument () {
-	System.err.println(studies.size() + " studies with drugs!");
-	/*
-          for (Study s : studies) {
-          System.out.print(s.title + ":");
-          for (String d : s.interventions) {
-          System.out.print(" \"" + d + "\"");
-          }
-          System.out.println();
-          }
-	*/
-    }
-    
-    public void startElement (String uri, String localName, String qName, 
-			      Attributes attrs) {
-	//System.out.println("start " + qName);
-        if (qName.equals("search_results")) {
+    public static void main (String[] argv) throws Exception {
+        // -option value pairs anywhere, the rest in order
+        Map<String, String> options = new HashMap<String, String>();
+        List<String> args = new ArrayList<String>();
+        for (int i = 0; i < argv.length; ++i) {
+            if (argv[i].startsWith("-") && argv[i].length() > 1) {
+                if (i + 1 == argv.length)
+                    usage ();
+                options.put(argv[i].substring(1), argv[++i]);
+            }
+            else
+                args.add(argv[i]);
         }
-        else if (qName.equals("study")) {
-            study = new Study ();
+
+        ClinicalCrawler crawler;
+        try {
+            String threads = options.get("threads");
+            crawler = new ClinicalCrawler 
+                (threads != null ? Integer.parseInt(threads)
+                 : Integer.getInteger("clinical-crawler.threads", 2));
+
+            String shards = options.get("shards");
+            crawler.setShards
+                (shards != null ? Integer.parseInt(shards)
+                 : Integer.getInteger("clinical-crawler.shards", 1));
+
+            String parsers = options.get("parsers");
+            crawler.setParseThreads
+                (parsers != null ? Integer.parseInt(parsers)
+                 : Integer.getInteger("clinical-crawler.parsers", 1));
         }
-        else if (qName.equals("intervention")) {
-            String type = attrs.getValue("type");
-            isDrug = type.equals("Drug");
+        catch (NumberFormatException ex) {
+            System.err.println("** Bogus number: "+ex.getMessage());
+            usage ();
+            return;
         }
-        content.setLength(0);
-    }
 
-    public void endElement (String uri, String localName, String qName) {
-        String value = content.toString();
-	if (qName.equals("study") && !study.interventions.isEmpty()) {
-	    studies.add(study);
-	}
-        else if (qName.equals("nct_id")) {
-            study.id = value;
+        try {
+            String cache = options.get("cache");
+            String offheap = options.get("offheap");
+            crawler.setCacheSize
+                ((cache != null ? Long.parseLong(cache)
+                  : Long.getLong("clinical-crawler.cache", 
+                                 CACHE_SIZE >> 20)) << 20,
+                 (offheap != null ? Long.parseLong(offheap)
+                  : Long.getLong("clinical-crawler.offheap", 0)) << 20);
+        }
+        catch (NumberFormatException ex) {
+            System.err.println("** Bogus number: "+ex.getMessage());
+            usage ();
         }
-	else if (qName.equals("title")) {
-	    study.title = value;
-	}
-	else if (qName.equals("condition")) {
-	    study.conditions.add(value);
-	}
-	else if (qName.equals("intervention")) {
-	    if (//isDrug && 
-                //!value.equalsIgnoreCase("placebo") && 
-                study.interventions.indexOf(value) < 0) {
-		study.interventions.add(value);
-	    }
-	}
-	else if (qName.equals("sponsor")) {
-	    study.sponsors.add(value);
-	}
-	else if (qName.equals("phase")) {
-	    study.phases.add(value);
-	}
-	else if (qName.equals("first_received")) {
-	    study.recieved = value;
-	}
-	else if (qName.equals("start_date")) {
-	    study.start = value;
-	}
-	else if (qName.equals("completion_date")) {
-	    study.completion = value;
-	}
-	else if (qName.equals("last_updated")) {
-	    study.updated = value;
-	}
-	else if (qName.equals("last_verified")) {
-	    study.verified = value;
-	}
-	else if (qName.equals("url")) {
-	    study.url = value;
-	}
-	//System.out.println("end " + qName);
-    }
-    
-    public void characters (char[] ch, int start, int length) {
-	content.append(ch, start, length);
-    }
 
-    public static void main (String[] argv) throws Exception {
-	ClinicalCrawler crawler = new ClinicalCrawler (2);
+        String scan = options.get("scan");
+        String studies = options.get("studies");
+        if (studies == null)
+            studies = System.getProperty("clinical-crawler.studies");
+        if (scan != null ? Boolean.parseBoolean(scan)
+            : Boolean.getBoolean("clinical-crawler.scan"))
+            crawler.setScanFields
+                (StudyScanner.MATCH 
+                 | (studies != null ? StudyScanner.UPDATED : 0));
+        if (options.containsKey("url"))
+            crawler.setDownloadUrl(options.get("url"));
+        String trace = options.get("trace");
+        if (trace == null)
+            trace = System.getProperty("clinical-crawler.trace", "all");
+        try {
+            crawler.setTracePolicy(TracePolicy.parse(trace));
+        }
+        catch (IllegalArgumentException ex) {
+            System.err.println("** "+ex.getMessage());
+            usage ();
+        }
 
-        if (argv.length > 0) {
-            logger.info("LoadDicting dictionary "+argv[0]+"...");
-            crawler.loadDict(new FileInputStream (argv[0]));
+        if (args.size() > 0 && isSnapshot (new File (args.get(0)))) {
+            logger.info("Loading snapshot "+args.get(0)+"...");
+            crawler.loadSnapshot(new File (args.get(0)));
         }
-        
-        crawler.loadModifiers();
+        else {
+            if (args.size() > 0) {
+                logger.info("LoadDicting dictionary "+args.get(0)+"...");
+                crawler.loadDict(new FileInputStream (args.get(0)));
+            }
+            crawler.loadModifiers();
+        }
+
+        String compile = options.get("compile");
+        if (compile != null) {
+            crawler.compile(new File (compile));
+            crawler.shutdown();
+            return;
+        }
+        String store = options.get("store");
+        if (store == null)
+            store = System.getProperty("clinical-crawler.store");
+        if (store != null)
+            crawler.openStore(new File (store));
         
         File file = null;
-        if (argv.length > 1) {
-            file = new File (argv[1]);
+        boolean stream = Boolean.parseBoolean(options.get("stream"));
+        if (args.size() > 1) {
+            file = new File (args.get(1));
         }
-        else {
+        else if (!stream) {
             file = crawler.download();
         }
 
-        PrintStream match = new PrintStream 
-            (new FileOutputStream ("crawler_match.csv"));
-        crawler.setMatchStream(match);
-        PrintStream align = new PrintStream
-            (new FileOutputStream ("crawler_align.txt"));
-        crawler.setAlignStream(align);
+        FileChannel match = new FileOutputStream 
+            ("crawler_match.csv").getChannel();
+        crawler.setMatchChannel(match);
+        FileChannel align = null;
+        if (!crawler.getTracePolicy().isOff()) {
+            align = new FileOutputStream
+                ("crawler_align.txt").getChannel();
+            crawler.setAlignChannel(align);
+        }
+        FileChannel delta = null;
+        if (studies != null) {
+            crawler.openStudyIndex(new File (studies));
+            delta = new FileOutputStream 
+                ("crawler_delta.csv").getChannel();
+            crawler.setDeltaChannel(delta);
+        }
+        String table = options.get("table");
+        if (table == null)
+            table = System.getProperty("clinical-crawler.table");
+        if (table != null)
+            crawler.setMatchTable(new File (table));
         
-        logger.info("Parsing "+file+"...");
-        crawler.parseCT(file);
+        if (file != null) {
+            logger.info("Parsing "+file+"...");
+            crawler.parseCT(file);
+        }
+        else {
+            String archive = options.get("archive");
+            crawler.crawl(archive != null ? new File (archive) : null);
+        }
         crawler.shutdown();
 
         match.close();
-        align.close();
+        if (align != null)
+            align.close();
+        if (delta != null)
+            delta.close();
     }
 }
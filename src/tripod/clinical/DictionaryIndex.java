@@ -0,0 +1,376 @@
+package tripod.clinical;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static tripod.clinical.SmithWaterman.fold;
+
+/**
+ * Flattened, read-only view of the dictionary with every (term, class)
+ * entry in the dictionary's iteration order. The terms are packed back
+ * to back into a single char array so that they can be scored without
+ * going through String and CharSequence. The entries are also indexed
+ * by length and by their case folded bigrams for candidate generation,
+ * and by their case folded terms for exact lookup. Since it's all
+ * arrays, the index is written as is to a dictionary snapshot and read
+ * back from one without being built again.
+ */
+class DictionaryIndex {
+    final String[] classes; // equivalence class ids
+    final int[] clazz; // entry -> class
+    final char[] text; // entry terms back to back
+    final char[] folded; // same as text, case folded
+    final int[] offsets; // entry -> start of its term; size()+1 entries
+
+    final int maxLength;
+    final int[] byLength; // entries ordered by length
+    final int[] lengths; // length -> start in byLength; maxLength+2 entries
+
+    // folded bigram -> entries, an entry once per occurrence
+    final int[] grams; // sorted
+    final int[] gramStart; // grams.length+1 entries
+    final int[] postings;
+
+    // entries ordered by folded term, then in dictionary order
+    final int[] sorted;
+
+    // shared bigram counts of the entries; all zeros between calls
+    private final ThreadLocal<int[]> counts = new ThreadLocal<int[]>() {
+        protected int[] initialValue () {
+            return new int[size ()];
+        }
+    };
+
+    DictionaryIndex (Map<String, Set<String>> dictionary) {
+        int size = 0, length = 0;
+        for (Set<String> terms : dictionary.values()) {
+            size += terms.size();
+            for (String t : terms)
+                length += t.length();
+        }
+
+        classes = new String[dictionary.size()];
+        clazz = new int[size];
+        text = new char[length];
+        offsets = new int[size+1];
+
+        int c = 0, k = 0, max = 0;
+        for (Map.Entry<String, Set<String>> me : dictionary.entrySet()) {
+            classes[c] = me.getKey();
+            for (String t : me.getValue()) {
+                clazz[k] = c;
+                t.getChars(0, t.length(), text, offsets[k]);
+                offsets[k+1] = offsets[k] + t.length();
+                max = Math.max(max, t.length());
+                ++k;
+            }
+            ++c;
+        }
+        maxLength = max;
+        folded = new char[length];
+        for (int i = 0; i < length; ++i)
+            folded[i] = fold (text[i]);
+
+        // counting sort on length keeps the dictionary order per length
+        lengths = new int[maxLength+2];
+        for (int e = 0; e < size; ++e)
+            ++lengths[length (e)+1];
+        for (int m = 0; m <= maxLength; ++m)
+            lengths[m+1] += lengths[m];
+        byLength = new int[size];
+        int[] next = lengths.clone();
+        for (int e = 0; e < size; ++e)
+            byLength[next[length (e)]++] = e;
+
+        // (bigram, entry) sorted on bigram then entry
+        int p = 0;
+        for (int e = 0; e < size; ++e)
+            p += Math.max(0, length (e) - 1);
+        long[] pairs = new long[p];
+        p = 0;
+        for (int e = 0; e < size; ++e)
+            for (int i = offsets[e]+1; i < offsets[e+1]; ++i)
+                pairs[p++] = (long)(folded[i-1] << 16 | folded[i]) << 32 | e;
+        Arrays.sort(pairs, 0, p);
+
+        int distinct = 0;
+        for (int i = 0; i < p; ++i)
+            if (i == 0 || (pairs[i] >> 32) != (pairs[i-1] >> 32))
+                ++distinct;
+        grams = new int[distinct];
+        gramStart = new int[distinct+1];
+        postings = new int[p];
+        for (int i = 0, g = -1; i < p; ++i) {
+            if (i == 0 || (pairs[i] >> 32) != (pairs[i-1] >> 32)) {
+                grams[++g] = (int)(pairs[i] >> 32);
+                gramStart[g] = i;
+            }
+            postings[i] = (int)pairs[i];
+        }
+        gramStart[distinct] = p;
+
+        Integer[] order = new Integer[size];
+        for (int e = 0; e < size; ++e)
+            order[e] = e;
+        Arrays.sort(order, new Comparator<Integer>() {
+                public int compare (Integer e1, Integer e2) {
+                    int d = compareFolded (e1, e2);
+                    return d != 0 ? d : e1 - e2;
+                }
+            });
+        sorted = new int[size];
+        for (int e = 0; e < size; ++e)
+            sorted[e] = order[e];
+    }
+
+    /**
+     * The index as write() left it at the position of buf
+     */
+    DictionaryIndex (ByteBuffer buf) {
+        classes = new String[buf.getInt()];
+        for (int c = 0; c < classes.length; ++c)
+            classes[c] = AlignmentCache.getString(buf);
+        clazz = getInts (buf);
+        text = getChars (buf);
+        folded = getChars (buf);
+        offsets = getInts (buf);
+        maxLength = buf.getInt();
+        byLength = getInts (buf);
+        lengths = getInts (buf);
+        grams = getInts (buf);
+        gramStart = getInts (buf);
+        postings = getInts (buf);
+        sorted = getInts (buf);
+    }
+
+    public void write (DataOutputStream out) throws IOException {
+        out.writeInt(classes.length);
+        for (String c : classes)
+            AlignmentStore.writeString(out, c);
+        putInts (out, clazz);
+        putChars (out, text);
+        putChars (out, folded);
+        putInts (out, offsets);
+        out.writeInt(maxLength);
+        putInts (out, byLength);
+        putInts (out, lengths);
+        putInts (out, grams);
+        putInts (out, gramStart);
+        putInts (out, postings);
+        putInts (out, sorted);
+    }
+
+    static void putInts (DataOutputStream out, int[] a) throws IOException {
+        out.writeInt(a.length);
+        for (int v : a)
+            out.writeInt(v);
+    }
+
+    static void putChars (DataOutputStream out, char[] a)
+        throws IOException {
+        out.writeInt(a.length);
+        for (char ch : a)
+            out.writeChar(ch);
+    }
+
+    // bulk copies straight out of buf
+    static int[] getInts (ByteBuffer buf) {
+        int[] a = new int[buf.getInt()];
+        buf.asIntBuffer().get(a);
+        buf.position(buf.position() + 4*a.length);
+        return a;
+    }
+
+    static char[] getChars (ByteBuffer buf) {
+        char[] a = new char[buf.getInt()];
+        buf.asCharBuffer().get(a);
+        buf.position(buf.position() + 2*a.length);
+        return a;
+    }
+
+    static int gram (char a, char b) {
+        return fold (a) << 16 | fold (b);
+    }
+
+    public int size () { return clazz.length; }
+    public int length (int entry) {
+        return offsets[entry+1] - offsets[entry];
+    }
+    public String term (int entry) {
+        return new String (text, offsets[entry], length (entry));
+    }
+    public String classOf (int entry) { return classes[clazz[entry]]; }
+
+    /**
+     * The dictionary the index is of, in its order
+     */
+    public Map<String, Set<String>> dictionary () {
+        Map<String, Set<String>> dict = 
+            new LinkedHashMap<String, Set<String>>();
+        for (String c : classes)
+            dict.put(c, new TreeSet<String>());
+        for (int e = 0; e < size (); ++e)
+            dict.get(classOf (e)).add(term (e));
+        return dict;
+    }
+
+    /**
+     * First entry in dictionary order that's the same as the query up
+     * to case; -1 if there's none
+     */
+    public int exact (CharSequence query) {
+        String q = fold (query);
+        // the first entry not below q
+        int lo = 0, hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareFolded (sorted[mid], q) < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo < sorted.length && compareFolded (sorted[lo], q) == 0
+            ? sorted[lo] : -1;
+    }
+
+    int compareFolded (int entry, CharSequence q) {
+        int i = offsets[entry], end = offsets[entry+1], k = 0;
+        for (; i < end && k < q.length(); ++i, ++k)
+            if (folded[i] != q.charAt(k))
+                return folded[i] - q.charAt(k);
+        return (end - i) - (q.length() - k);
+    }
+
+    int compareFolded (int e1, int e2) {
+        int i = offsets[e1], end1 = offsets[e1+1];
+        int j = offsets[e2], end2 = offsets[e2+1];
+        for (; i < end1 && j < end2; ++i, ++j)
+            if (folded[i] != folded[j])
+                return folded[i] - folded[j];
+        return (end1 - i) - (end2 - j);
+    }
+
+    /**
+     * Candidates for the query in dictionary order. For an entry of
+     * length m and a query of length n, bounds[m] (maxLength+1 entries)
+     * is the least number of case folded characters the two must have
+     * in common and shared[m] the least number of case folded bigrams
+     * they must share, both counted with multiplicity. A whole length is
+     * skipped when min(n,m) is below its bound, and a bigram bound of 0
+     * or less lets every entry of its length through. The entries left
+     * out at each of the three stages are added to pruned[0..2].
+     */
+    public int[] candidates (CharSequence query, int[] bounds, int[] shared,
+                             long[] pruned) {
+        int n = query.length();
+        int[] counts = this.counts.get();
+        int[] touched = new int[64];
+        int t = 0;
+        if (n > 1) {
+            int[] q = new int[n-1];
+            for (int i = 1; i < n; ++i)
+                q[i-1] = gram (query.charAt(i-1), query.charAt(i));
+            Arrays.sort(q);
+
+            for (int i = 0; i < q.length; ) {
+                int g = q[i], cq = 0;
+                for (; i < q.length && q[i] == g; ++i)
+                    ++cq;
+                int k = Arrays.binarySearch(grams, g);
+                if (k < 0)
+                    continue;
+
+                for (int p = gramStart[k], end = gramStart[k+1]; p < end; ) {
+                    int e = postings[p], ce = 0;
+                    for (; p < end && postings[p] == e; ++p)
+                        ++ce;
+                    if (counts[e] == 0) {
+                        if (t == touched.length) {
+                            int[] grow = new int[2*t];
+                            System.arraycopy(touched, 0, grow, 0, t);
+                            touched = grow;
+                        }
+                        touched[t++] = e;
+                    }
+                    counts[e] += Math.min(ce, cq);
+                }
+            }
+        }
+
+        // length buckets first, then bigrams
+        int all = 0, bigrams = 0;
+        for (int m = 0; m <= maxLength; ++m) {
+            int size = lengths[m+1] - lengths[m];
+            if (bounds[m] > Math.min(n, m))
+                pruned[0] += size;
+            else if (shared[m] <= 0)
+                all += size;
+            else
+                bigrams += size;
+        }
+
+        int[] cands = new int[all + t];
+        int c = 0;
+        for (int m = 0; m <= maxLength; ++m)
+            if (bounds[m] <= Math.min(n, m) && shared[m] <= 0)
+                for (int k = lengths[m]; k < lengths[m+1]; ++k)
+                    cands[c++] = byLength[k];
+        for (int k = 0; k < t; ++k) {
+            int e = touched[k], m = length (e);
+            if (bounds[m] <= Math.min(n, m) && shared[m] > 0 
+                && counts[e] >= shared[m]) {
+                cands[c++] = e;
+                --bigrams;
+            }
+            counts[e] = 0;
+        }
+        pruned[1] += bigrams;
+
+        // then the character histograms
+        char[] chars = new char[n];
+        for (int i = 0; i < n; ++i)
+            chars[i] = fold (query.charAt(i));
+        Arrays.sort(chars);
+        int distinct = 0;
+        for (int i = 0; i < n; ++i)
+            if (i == 0 || chars[i] != chars[i-1])
+                ++distinct;
+        char[] alphabet = new char[distinct];
+        int[] total = new int[distinct], used = new int[distinct];
+        for (int i = 0, a = -1; i < n; ++i) {
+            if (i == 0 || chars[i] != chars[i-1])
+                alphabet[++a] = chars[i];
+            ++total[a];
+        }
+
+        int kept = 0;
+        for (int k = 0; k < c; ++k) {
+            int e = cands[k], overlap = 0;
+            for (int a = 0; a < distinct; ++a)
+                used[a] = 0;
+            for (int i = offsets[e]; i < offsets[e+1]; ++i) {
+                int a = Arrays.binarySearch(alphabet, folded[i]);
+                if (a >= 0 && used[a]++ < total[a])
+                    ++overlap;
+            }
+            if (overlap >= bounds[length (e)])
+                cands[kept++] = e;
+        }
+        pruned[2] += c - kept;
+        Arrays.sort(cands, 0, kept);
+
+        if (kept < cands.length) {
+            int[] trim = new int[kept];
+            System.arraycopy(cands, 0, trim, 0, kept);
+            cands = trim;
+        }
+        return cands;
+    }
+}
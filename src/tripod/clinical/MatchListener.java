@@ -0,0 +1,23 @@
+package tripod.clinical;
+
+import java.util.Set;
+
+import tripod.clinical.ClinicalCrawler.AlignmentRef;
+import tripod.clinical.ClinicalCrawler.Study;
+
+/**
+ * Gets the matches of each study as soon as it's aligned, e.g., to use
+ * the crawler within another program without going through its CSV
+ * output, which is written by a listener of its own. It's called from
+ * the align threads, so by more than one at a time.
+ */
+public interface MatchListener {
+    /**
+     * The alignments of the terms of s (or its title, if none of them
+     * matched) accepted as matches, ranked best first; empty for none.
+     * The match output has the first of each dictionary class. The
+     * matches are shared with the other listeners, so not to be changed.
+     */
+    void matched (Study s, Set<AlignmentRef> matches)
+        throws InterruptedException;
+}
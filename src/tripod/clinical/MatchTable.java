@@ -0,0 +1,201 @@
+package tripod.clinical;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The binary match table of a crawl (see ClinicalCrawler.setMatchTable),
+ * mapped into memory. It has the rows of the match output, each as the
+ * index of its NCT id, term, dictionary class and dictionary term, which
+ * are -1 for a term that matched nothing, and its similarity, global and
+ * local scores, which are then NaN. The strings are looked up by index
+ * with getStudy(), getTerm() and getClassId(); a Cursor goes over the
+ * rows without allocating anything, e.g.,
+ * <pre>
+ *   MatchTable table = new MatchTable (file);
+ *   for (MatchTable.Cursor c = table.cursor(); c.next(); )
+ *       if (c.similarity() > .95)
+ *           System.out.println(table.getStudy(c.study()));
+ * </pre>
+ *
+ * The file is the rows in blocks of up to BLOCK rows, each a column for
+ * each field, so that they can be written out as they come, followed by
+ * the string dictionaries and a footer with where each of those starts:
+ * <pre>
+ * int MAGIC, int VERSION,
+ * blocks x { n x int study, n x int term, n x int class, n x int ref,
+ *            n x double similarity, n x double global, n x double local }
+ *   where n is block, or the rows left for the last one,
+ * 3 x { int count, (count+1) x int offset in chars, chars,
+ *       a char to pad to 4 bytes if need be }, for studies, terms
+ *                                               and classes
+ * int rows, int block, 3 x long offset of a dictionary, int MAGIC
+ * </pre>
+ */
+public class MatchTable {
+    static final int MAGIC = 0x43544d54; // CTMT
+    static final int VERSION = 2;
+    static final int BLOCK = 1 << 16; // rows per block as written
+    static final int INTS = 4, DOUBLES = 3; // columns
+    static final int ROW = 4*INTS + 8*DOUBLES; // bytes
+    static final int DICTIONARIES = 3;
+    static final int FOOTER = 12 + 8*DICTIONARIES;
+
+    final ByteBuffer map;
+    final int rows, block;
+    final Strings studies, terms, classes;
+
+    // a string dictionary
+    static class Strings {
+        final int size;
+        final IntBuffer offsets;
+        final CharBuffer chars;
+
+        Strings (ByteBuffer map, int at) {
+            size = map.getInt(at);
+            offsets = slice (map, at + 4, 4*(size + 1)).asIntBuffer();
+            chars = slice (map, at + 8 + 4*size, 2*offsets.get(size))
+                .asCharBuffer();
+        }
+
+        String get (int i) {
+            if (i < 0)
+                return null;
+            int start = offsets.get(i), end = offsets.get(i+1);
+            char[] s = new char[end - start];
+            for (int k = 0; k < s.length; ++k)
+                s[k] = chars.get(start + k);
+            return new String (s);
+        }
+    }
+
+    /**
+     * Where a Cursor is; next() moves it to the next row, if there's one
+     */
+    public class Cursor {
+        int row = -1;
+        // where the block of row starts, its rows and row within it
+        int at, size, index;
+
+        Cursor () {}
+
+        public boolean next () {
+            if (row + 1 >= rows)
+                return false;
+            if (row >= 0 && index + 1 < size) {
+                ++row;
+                ++index;
+            }
+            else
+                seek (row + 1);
+            return true;
+        }
+
+        public int row () { return row; }
+        public void seek (int row) {
+            if (row < 0 || row >= rows)
+                throw new IndexOutOfBoundsException ("row "+row);
+            int b = row / block;
+            this.row = row;
+            index = row - b * block;
+            size = Math.min(block, rows - b * block);
+            at = 8 + ROW * block * b;
+        }
+
+        // where int column c and double column d of the row are
+        int ints (int c) { return at + 4 * (c * size + index); }
+        int doubles (int d) {
+            return at + 4 * INTS * size + 8 * (d * size + index);
+        }
+
+        public int study () { return map.getInt(ints (0)); }
+        public int term () { return map.getInt(ints (1)); }
+        public int classId () { return map.getInt(ints (2)); }
+        public int ref () { return map.getInt(ints (3)); }
+        public double similarity () { return map.getDouble(doubles (0)); }
+        public double global () { return map.getDouble(doubles (1)); }
+        public double local () { return map.getDouble(doubles (2)); }
+        public boolean matched () { return classId () >= 0; }
+    }
+
+    public MatchTable (File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile (file, "r");
+        try {
+            FileChannel fc = raf.getChannel();
+            if (fc.size() > Integer.MAX_VALUE || fc.size() < 8 + FOOTER)
+                throw new IOException ("bogus size "+fc.size());
+            map = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+        }
+        finally {
+            raf.close();
+        }
+
+        int end = map.limit();
+        if (map.getInt(0) != MAGIC || map.getInt(end - 4) != MAGIC)
+            throw new IOException (file+" is not a match table");
+        if (map.getInt(4) != VERSION)
+            throw new IOException (file+" is of version "+map.getInt(4));
+
+        int footer = end - FOOTER;
+        rows = map.getInt(footer);
+        block = map.getInt(footer + 4);
+        if (rows < 0 || block <= 0 
+            || 8 + (long)ROW * rows > footer)
+            throw new IOException (file+" has bogus rows "+rows);
+        int[] at = new int[DICTIONARIES];
+        for (int k = 0; k < DICTIONARIES; ++k)
+            at[k] = (int)map.getLong(footer + 8 + 8*k);
+
+        studies = new Strings (map, at[0]);
+        terms = new Strings (map, at[1]);
+        classes = new Strings (map, at[2]);
+    }
+
+    static ByteBuffer slice (ByteBuffer map, int at, int len) {
+        ByteBuffer buf = map.duplicate();
+        buf.limit(at + len).position(at);
+        return buf.slice();
+    }
+
+    public int size () { return rows; }
+    public Cursor cursor () { return new Cursor (); }
+
+    // the string dictionaries; null for -1
+    public int getStudyCount () { return studies.size; }
+    public String getStudy (int i) { return studies.get(i); }
+    public int getTermCount () { return terms.size; }
+    public String getTerm (int i) { return terms.get(i); }
+    public int getClassCount () { return classes.size; }
+    public String getClassId (int i) { return classes.get(i); }
+
+    public static void main (String[] argv) throws Exception {
+        if (argv.length == 0) {
+            System.err.println("Usage: MatchTable FILE");
+            System.exit(1);
+        }
+
+        MatchTable table = new MatchTable (new File (argv[0]));
+        System.out.println(ClinicalCrawler.MATCH_HEADER);
+        for (Cursor c = table.cursor(); c.next(); ) {
+            StringBuilder sb = new StringBuilder ();
+            sb.append(table.getStudy(c.study())).append(",\"")
+                .append(table.getTerm(c.term()));
+            if (c.matched()) {
+                sb.append("\",").append(table.getClassId(c.classId()))
+                    .append(",\"").append(table.getTerm(c.ref()))
+                    .append("\",");
+                ResultWriter.format(sb, c.similarity()).append(',');
+                ResultWriter.format(sb, c.global()).append(',');
+                ResultWriter.format(sb, c.local());
+            }
+            else
+                sb.append("\",,,,,,");
+            System.out.println(sb);
+        }
+    }
+}
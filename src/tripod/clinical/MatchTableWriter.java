@@ -0,0 +1,146 @@
+package tripod.clinical;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import tripod.clinical.ResultWriter.Row;
+
+/**
+ * Builds the binary match table that MatchTable reads: the rows of the
+ * match output as a column for each field, with the NCT ids, terms and
+ * class ids each kept once in a string dictionary and the rows referring
+ * to them by index. The rows are written out a block at a time as they
+ * come, so only the block being filled and the dictionaries are kept in
+ * memory; close() writes the rest. A block that can't be written fails
+ * the table, which close() then throws.
+ */
+class MatchTableWriter {
+    static final Logger logger = Logger.getLogger
+        (MatchTableWriter.class.getName());
+
+    final File file;
+    final DataOutputStream out;
+    int rows, size; // rows in all, and in the block being filled
+    final int[] study, term, clazz, ref;
+    final double[] similarity, global, local;
+    final Strings studies = new Strings ();
+    final Strings terms = new Strings ();
+    final Strings classes = new Strings ();
+    IOException failed;
+
+    // strings in the order first seen, each with its index
+    static class Strings {
+        final Map<String, Integer> index = new HashMap<String, Integer>();
+        final List<String> strings = new ArrayList<String>();
+
+        int get (String s) {
+            if (s == null)
+                return -1;
+            Integer i = index.get(s);
+            if (i == null) {
+                index.put(s, i = strings.size());
+                strings.add(s);
+            }
+            return i;
+        }
+    }
+
+    MatchTableWriter (File file) throws IOException {
+        this (file, MatchTable.BLOCK);
+    }
+
+    MatchTableWriter (File file, int block) throws IOException {
+        this.file = file;
+        study = new int[block];
+        term = new int[block];
+        clazz = new int[block];
+        ref = new int[block];
+        similarity = new double[block];
+        global = new double[block];
+        local = new double[block];
+        out = new DataOutputStream
+            (new BufferedOutputStream (new FileOutputStream (file)));
+        out.writeInt(MatchTable.MAGIC);
+        out.writeInt(MatchTable.VERSION);
+    }
+
+    public void add (String id, Row r) {
+        study[size] = studies.get(id);
+        term[size] = terms.get(r.term);
+        clazz[size] = classes.get(r.clazz);
+        ref[size] = terms.get(r.ref);
+        similarity[size] = r.similarity;
+        global[size] = r.global;
+        local[size] = r.local;
+        ++rows;
+        if (++size == study.length)
+            block ();
+    }
+
+    // the rows of the block being filled out to the file
+    void block () {
+        if (failed == null) {
+            try {
+                for (int[] column : new int[][]{ study, term, clazz, ref })
+                    for (int i = 0; i < size; ++i)
+                        out.writeInt(column[i]);
+                for (double[] column
+                         : new double[][]{ similarity, global, local })
+                    for (int i = 0; i < size; ++i)
+                        out.writeDouble(column[i]);
+            }
+            catch (IOException ex) {
+                logger.log(Level.SEVERE, "Can't write to "+file, ex);
+                failed = ex;
+            }
+        }
+        size = 0;
+    }
+
+    public void close () throws IOException {
+        try {
+            if (size > 0)
+                block ();
+            if (failed != null)
+                throw failed;
+
+            long[] offsets = new long[MatchTable.DICTIONARIES];
+            int k = 0;
+            for (Strings dict : new Strings[]{ studies, terms, classes }) {
+                offsets[k++] = out.size();
+                write (out, dict.strings);
+            }
+
+            out.writeInt(rows);
+            out.writeInt(study.length);
+            for (long at : offsets)
+                out.writeLong(at);
+            out.writeInt(MatchTable.MAGIC);
+        }
+        finally {
+            out.close();
+        }
+        logger.info(rows+" match row(s), "+studies.strings.size()
+                    +" studies, "+terms.strings.size()+" terms and "
+                    +classes.strings.size()+" classes in "+file);
+    }
+
+    // the count, the offset of each string in chars and the chars
+    static void write (DataOutputStream out, List<String> strings)
+        throws IOException {
+        out.writeInt(strings.size());
+        int at = 0;
+        out.writeInt(at);
+        for (String s : strings)
+            out.writeInt(at += s.length());
+        for (String s : strings)
+            out.writeChars(s);
+        if (at % 2 != 0)
+            out.writeChar(0); // to keep the next section 4-byte aligned
+    }
+}
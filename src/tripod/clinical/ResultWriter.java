@@ -0,0 +1,442 @@
+package tripod.clinical;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import tripod.clinical.ClinicalCrawler.AlignmentRef;
+import tripod.clinical.ClinicalCrawler.Study;
+
+/**
+ * Writes the match, alignment and delta output of the crawler on a
+ * thread of its own. The align workers only put their studies and
+ * matches in a bounded queue; the writer takes them off a batch at a
+ * time, formats the rows into a buffer for each output and writes a
+ * buffer out to its channel once it's full or there's nothing left to
+ * take. The rows are the same, in the same order, as the workers used
+ * to print them. The match rows also go to the binary match table, if
+ * there's one.
+ */
+class ResultWriter implements Runnable, MatchListener {
+    static final Logger logger = Logger.getLogger
+        (ResultWriter.class.getName());
+
+    static final int CAPACITY = 4096; // results waiting to be written
+    static final int BATCH = 256;
+    static final int BUFFER = 1 << 20; // chars buffered per output
+    static final String EOL = System.getProperty("line.separator");
+    // whether %.3f is plain ASCII digits and a point here
+    static final boolean ASCII = String.format("%1$.3f", -1.5).equals("-1.500");
+
+    static class Result {
+        final Study study; // aligned, with its matches
+        final Set<AlignmentRef> matches;
+        final String id; // else the match rows of study id as they are
+        final List<Row> rows;
+        final boolean removed; // or, if set, as removed to the delta
+        final CountDownLatch flushed; // or else a flush
+
+        Result (Study study, Set<AlignmentRef> matches, String id,
+                List<Row> rows, boolean removed, CountDownLatch flushed) {
+            this.study = study;
+            this.matches = matches;
+            this.id = id;
+            this.rows = rows;
+            this.removed = removed;
+            this.flushed = flushed;
+        }
+    }
+
+    static final Result DONE = 
+        new Result (null, null, null, null, false, null);
+
+    /*
+     * a match row of a study: the term, then the dictionary class and
+     * term it matched with its scores as aligned; the class and term
+     * are null and the scores NaN for a term that matched nothing
+     */
+    static class Row {
+        final String term, clazz, ref;
+        final double similarity, global, local;
+
+        Row (String term) {
+            this (term, null, null, Double.NaN, Double.NaN, Double.NaN);
+        }
+
+        Row (String term, String clazz, String ref, double similarity,
+             double global, double local) {
+            this.term = term;
+            this.clazz = clazz;
+            this.ref = ref;
+            this.similarity = similarity;
+            this.global = global;
+            this.local = local;
+        }
+
+        // the row of the match output for study id
+        StringBuilder append (StringBuilder sb, String id) {
+            sb.append(id).append(",\"").append(term);
+            if (clazz == null)
+                return sb.append("\",,,,,,");
+            sb.append("\",").append(clazz).append(",\"").append(ref)
+                .append("\",");
+            format (sb, similarity).append(',');
+            format (sb, global).append(',');
+            return format (sb, local);
+        }
+
+        // the row without its scores
+        String key () {
+            return clazz == null ? term : term+"\",\""+clazz+"\",\""+ref;
+        }
+
+        public boolean equals (Object obj) {
+            if (!(obj instanceof Row))
+                return false;
+            Row r = (Row)obj;
+            return key().equals(r.key()) && eq (similarity, r.similarity)
+                && eq (global, r.global) && eq (local, r.local);
+        }
+
+        public int hashCode () { return key().hashCode(); }
+
+        // the same as written
+        static boolean eq (double a, double b) {
+            return Double.compare(a, b) == 0
+                || format (new StringBuilder (), a).toString()
+                .equals(format (new StringBuilder (), b).toString());
+        }
+    }
+
+    /*
+     * an output: its channel, the chars not yet written to it and the
+     * stream the channel writes to, if any, to be flushed
+     */
+    static class Output {
+        final WritableByteChannel channel;
+        final Flushable stream;
+        final StringBuilder chars = new StringBuilder ();
+        final CharsetEncoder encoder = Charset.defaultCharset().newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer bytes = ByteBuffer.allocateDirect(BUFFER);
+
+        Output (WritableByteChannel channel, Flushable stream) {
+            this.channel = channel;
+            this.stream = stream;
+        }
+
+        void write () throws IOException {
+            if (chars.length() == 0)
+                return;
+
+            CharBuffer cb = CharBuffer.wrap(chars);
+            encoder.reset();
+            for (boolean done = false; !done; ) {
+                done = !encoder.encode(cb, bytes, true).isOverflow()
+                    && !encoder.flush(bytes).isOverflow();
+                bytes.flip();
+                while (bytes.hasRemaining())
+                    channel.write(bytes);
+                bytes.clear();
+            }
+            chars.setLength(0);
+        }
+
+        void flush () throws IOException {
+            write ();
+            if (stream != null)
+                stream.flush();
+        }
+    }
+
+    final BlockingQueue<Result> queue =
+        new ArrayBlockingQueue<Result>(CAPACITY);
+    volatile Output match, align, delta;
+    volatile StudyIndex studies;
+    volatile MatchTableWriter table;
+    volatile int maxCandidates = 5;
+    volatile TracePolicy trace = TracePolicy.ALL;
+
+    /**
+     * Hand the matches of s over to be written
+     */
+    public void put (Study s, Set<AlignmentRef> matches)
+        throws InterruptedException {
+        queue.put(new Result (s, matches, null, null, false, null));
+    }
+
+    public void matched (Study s, Set<AlignmentRef> matches)
+        throws InterruptedException {
+        put (s, matches);
+    }
+
+    // match rows of study id as they are
+    public void put (String id, List<Row> rows) throws InterruptedException {
+        queue.put(new Result (null, null, id, rows, false, null));
+    }
+
+    // delta rows of study id that's gone
+    public void removed (String id, List<Row> rows) 
+        throws InterruptedException {
+        queue.put(new Result (null, null, id, rows, true, null));
+    }
+
+    /**
+     * Wait for everything handed over so far to be written out
+     */
+    public void flush () throws InterruptedException {
+        CountDownLatch flushed = new CountDownLatch (1);
+        queue.put(new Result (null, null, null, null, false, flushed));
+        flushed.await();
+    }
+
+    public void stop () throws InterruptedException {
+        queue.put(DONE);
+    }
+
+    public void run () {
+        List<Result> batch = new ArrayList<Result>(BATCH);
+        try {
+            for (boolean done = false; !done; ) {
+                batch.clear();
+                batch.add(queue.take());
+                queue.drainTo(batch, BATCH - 1);
+
+                for (Result r : batch) {
+                    if (r == DONE) {
+                        done = true;
+                        break;
+                    }
+                    try {
+                        write (r);
+                    }
+                    catch (RuntimeException ex) {
+                        // keep going; the rest still has to be written
+                        logger.log(Level.SEVERE, "Can't write results of "
+                                   +(r.study != null ? r.study.id : r.id), ex);
+                    }
+                    finally {
+                        if (r.flushed != null)
+                            r.flushed.countDown();
+                    }
+                }
+
+                // out with what's there when there's nothing else to do
+                if (done || queue.isEmpty()) {
+                    write (match, 0);
+                    write (align, 0);
+                    write (delta, 0);
+                }
+            }
+        }
+        catch (InterruptedException ex) {
+            logger.info("## result writer interrupted!");
+            // don't leave anyone waiting on a flush
+            batch.clear();
+            queue.drainTo(batch);
+            for (Result r : batch)
+                if (r.flushed != null)
+                    r.flushed.countDown();
+        }
+    }
+
+    void write (Result r) {
+        if (r.flushed != null) {
+            flush (match);
+            flush (align);
+            flush (delta);
+        }
+        else if (r.removed) {
+            Output delta = this.delta;
+            if (delta != null) {
+                for (Row row : r.rows)
+                    row.append(delta.chars.append("REMOVED,"), r.id)
+                        .append(EOL);
+                write (delta, BUFFER);
+            }
+        }
+        else if (r.study == null) {
+            Output match = this.match;
+            if (match != null) {
+                for (Row row : r.rows)
+                    row.append(match.chars, r.id).append(EOL);
+                write (match, BUFFER);
+            }
+            MatchTableWriter table = this.table;
+            if (table != null) {
+                for (Row row : r.rows)
+                    table.add(r.id, row);
+            }
+        }
+        else {
+            write (r.study, r.matches);
+        }
+    }
+
+    void write (Study s, Set<AlignmentRef> matches) {
+        Output match = this.match, align = this.align;
+        StudyIndex studies = this.studies;
+        MatchTableWriter table = this.table;
+        TracePolicy trace = this.trace;
+        List<Row> rows = studies != null || table != null 
+            ? new ArrayList<Row>() : null;
+        StringBuilder sb = match != null ? match.chars : new StringBuilder ();
+
+        if (matches == null || matches.isEmpty()) {
+            for (String d : s.interventions) {
+                sb.append(s.id).append(",\"").append(d).append("\",,,,,,")
+                    .append(EOL);
+                if (rows != null)
+                    rows.add(new Row (d));
+            }
+        }
+        else {
+            Set<String> unique = new HashSet<String>();
+            int size = Math.max(s.interventions.size(), maxCandidates);
+
+            for (AlignmentRef ar : matches) {
+                // only the alignments picked are rendered
+                if (align != null && trace.trace
+                    (s.id, ar.id, ar.result.similarity())) {
+                    StringBuilder ab = align.chars;
+                    pad (ab.append("++++ "), s.id, 12)
+                        .append(": \"").append(ar.term).append('"').append(EOL);
+                    pad (ab.append("---- "), ar.id, 12)
+                        .append(": \"").append(ar.ref).append('"').append(EOL);
+                    ab.append(ar.result).append(EOL).append('[');
+                    format (ab, ar.result.global()).append(',');
+                    format (ab, ar.result.local()).append(',');
+                    format (ab, ar.result.similarity()).append(']').append(EOL);
+                }
+
+                if (unique.add(ar.id) && unique.size() <= size) {
+                    sb.append(s.id).append(",\"").append(ar.term).append("\",")
+                        .append(ar.id).append(",\"").append(ar.ref).append("\",");
+                    format (sb, ar.result.similarity()).append(',');
+                    format (sb, ar.result.global()).append(',');
+                    format (sb, ar.result.local());
+                    if (rows != null)
+                        rows.add(new Row (ar.term, ar.id, ar.ref, 
+                                          ar.result.similarity(),
+                                          ar.result.global(),
+                                          ar.result.local()));
+                    sb.append(EOL);
+                }
+            }
+            write (align, BUFFER);
+        }
+        write (match, BUFFER);
+
+        if (table != null) {
+            for (Row r : rows)
+                table.add(s.id, r);
+        }
+        if (studies != null)
+            delta (s.id, studies.put(s, rows), rows);
+    }
+
+    /*
+     * the rows of a study that are new or have a new score since before
+     * (which is null for a study that wasn't there) and the ones of
+     * before that are gone, each in the order of its rows
+     */
+    void delta (String id, List<Row> before, List<Row> rows) {
+        Output delta = this.delta;
+        if (delta == null)
+            return;
+
+        Map<String, Row> old = new LinkedHashMap<String, Row>();
+        if (before != null) {
+            for (Row r : before)
+                old.put(r.key(), r);
+        }
+        StringBuilder sb = delta.chars;
+        for (Row r : rows) {
+            Row o = old.remove(r.key());
+            if (o == null)
+                r.append(sb.append("ADDED,"), id).append(EOL);
+            else if (!o.equals(r))
+                r.append(sb.append("CHANGED,"), id).append(EOL);
+        }
+        for (Row r : old.values())
+            r.append(sb.append("REMOVED,"), id).append(EOL);
+        write (delta, BUFFER);
+    }
+
+    // write out the output once it has more than this many chars
+    static void write (Output out, int chars) {
+        if (out != null && out.chars.length() > chars) {
+            try {
+                out.write();
+            }
+            catch (IOException ex) {
+                logger.log(Level.SEVERE, "Can't write results", ex);
+                out.chars.setLength(0);
+            }
+        }
+    }
+
+    static void flush (Output out) {
+        if (out != null) {
+            try {
+                out.flush();
+            }
+            catch (IOException ex) {
+                logger.log(Level.SEVERE, "Can't write results", ex);
+                out.chars.setLength(0);
+            }
+        }
+    }
+
+    // same as String.format("%1$12s", s), "null" and all
+    static StringBuilder pad (StringBuilder sb, String s, int width) {
+        s = String.valueOf(s);
+        for (int k = s.length(); k < width; ++k)
+            sb.append(' ');
+        return sb.append(s);
+    }
+
+    /**
+     * Same as String.format("%1$.3f", v) without the formatter for the
+     * values not right between two thousandths, where the result would
+     * depend on how the formatter rounds
+     */
+    static StringBuilder format (StringBuilder sb, double v) {
+        double x = Math.abs(v) * 1000.;
+        if (ASCII && x < 1e15) {
+            long n = (long)x;
+            double frac = x - n;
+            if (Math.abs(frac - .5) > 1e-6) {
+                if (frac > .5)
+                    ++n;
+                if (Double.doubleToRawLongBits(v) < 0)
+                    sb.append('-');
+                sb.append(n / 1000).append('.');
+                int f = (int)(n % 1000);
+                if (f < 100)
+                    sb.append('0');
+                if (f < 10)
+                    sb.append('0');
+                return sb.append(f);
+            }
+        }
+        return sb.append(String.format("%1$.3f", v));
+    }
+}
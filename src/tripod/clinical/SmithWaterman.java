@@ -1,11 +1,10 @@
 package tripod.clinical;
 
 import java.io.PrintStream;
+import java.nio.CharBuffer;
 import java.util.BitSet;
 import java.util.LinkedList;
-import java.util.Iterator;
-import java.util.List;
-import java.util.ArrayList;
+import java.util.ListIterator;
 import java.util.Enumeration;
 import java.util.Collections;
 import java.util.Comparator;
@@ -27,10 +26,23 @@ public class SmithWaterman implements Comparator<SmithWaterman.Alignment> {
     public static final int SCORE_MATCH_SPACE = 0;
     public static final int SCORE_MISMATCH = -1;
 
+    /*
+     * number of targets scored side by side by the batch score(); a
+     * compile time constant so that the loop across lanes has a fixed
+     * trip count
+     */
+    public static final int LANES = 16;
+    static final int NO_MATCH = 0x10000; // past the end of a lane
+
     static int DEBUG = 0;
+    static int BAND = 0; // default band; 0 is no band
+    static int MAX_ALIGNMENTS = 8; // default k of the top-k alignments
     static {
         try {
             DEBUG = Integer.getInteger("smith-waterman.debug", 0);
+            BAND = Integer.getInteger("smith-waterman.band", 0);
+            MAX_ALIGNMENTS = Integer.getInteger
+                ("smith-waterman.alignments", MAX_ALIGNMENTS);
         }
         catch (Exception ex) {
         }
@@ -42,72 +54,51 @@ public class SmithWaterman implements Comparator<SmithWaterman.Alignment> {
         int del (char ch);
     }
 
+    /**
+     * An alignment keeps only its scores, end points and trace; the
+     * text, extents and tokens are rendered from the trace on demand.
+     */
     public static class Alignment implements Comparable<Alignment> {
-        int[] alignA, alignB;
-        int score;
-        CharSequence seqi, seqj;
-        BitSet extent1, extent2;
-        BitSet matches;
-        String alignment;
+        final CharSequence seqi, seqj;
+        final int[] trace; // packed (i,j) pairs as traced
+        final int scored; // number of pairs scored; see below
+        int start1, start2, end1, end2; // end points, whitespace trimmed
+        int score, matches;
         double globalSim, localSim, similarity;
-        List<Pair> trace;
 
-        Alignment (CharSequence seqi, CharSequence seqj, List<Pair> trace) {
+        Alignment (CharSequence seqi, CharSequence seqj, int[] trace) {
+            this.seqi = seqi;
+            this.seqj = seqj;
             this.trace = trace;
-            int size = trace.size();
-            alignA = new int[size];
-            alignB = new int[size];
-            matches = new BitSet (size);
-            extent1 = new BitSet (size);
-            extent2 = new BitSet (size);
+            int size = trace.length / 2;
 
             int k = 0;
-            StringBuilder sb1 = new StringBuilder ();
-            StringBuilder sb2 = new StringBuilder ();
-            StringBuilder sb3 = new StringBuilder ();
-            for (Iterator<Pair> it = trace.iterator(); it.hasNext(); ++k) {
-                Pair p = it.next();
-                alignA[k] = p.i;
-                alignB[k] = p.j;
-
-                boolean matched = false;
-                if (p.i < 0 && p.j < 0) {
+            for (; k < size; ++k) {
+                int pi = trace[2*k], pj = trace[2*k+1];
+                if (pi < 0 && pj < 0) {
+                    // a gap in both (only in merged traces) ends it
+                    ++k;
                     break;
                 }
-                else if (p.i >= 0 && p.j >= 0) {
-                    char a = seqi.charAt(p.i), b = seqj.charAt(p.j);
-                    sb1.append(a);
-                    sb3.append(b);
-                    matched = compare (a, b) > 0;
-                    sb2.append(matched ? '|' : ' ');
-                    if (!matched)
+                else if (pi >= 0 && pj >= 0) {
+                    if (compare (seqi.charAt(pi), seqj.charAt(pj)) > 0)
+                        ++matches;
+                    else
                         score += SCORE_MISMATCH;
-                    extent1.set(p.i, true);
-                    extent2.set(p.j, true);
                 }
-                else if (p.i >= 0) {
-                    sb1.append(seqi.charAt(p.i));
-                    sb3.append('-');
-                    sb2.append(' ');
-                    extent1.set(p.i, true);
+                else {
                     score += SCORE_MISMATCH;
                 }
-                else if (p.j >= 0) {
-                    sb1.append('-');
-                    sb3.append(seqj.charAt(p.j));
-                    sb2.append(' ');
-                    extent2.set(p.j, true);
-                    score += SCORE_MISMATCH;
-                }
-                matches.set(k, matched);
             }
-            int max = SCORE_MATCH*matches.cardinality();
+            scored = k;
+            int max = SCORE_MATCH*matches;
             score += max;
 
             // now adjust the score based on the left & right side of
             // the alignment
-            Pair p = trace.get(0);
-            if (p.i >= 0) {
+            start1 = trace[0];
+            start2 = trace[1];
+            if (start1 >= 0) {
                 /*
                  * this is to treat suffix alignment the same 
                  * as prefix alignment; e.g., 
@@ -115,55 +106,60 @@ public class SmithWaterman implements Comparator<SmithWaterman.Alignment> {
                  * "curdlan sulfate" vs "sulfate uranyl"
                  * both should have local score of 1 for "sulfate"
                  */
-                while (p.i < seqi.length() 
-                       && Character.isWhitespace(seqi.charAt(p.i)))
-                    ++p.i;
-                for (k = p.i; --k >= 0 && isPartOfToken (seqi.charAt(k)); )
+                while (start1 < seqi.length() 
+                       && Character.isWhitespace(seqi.charAt(start1)))
+                    ++start1;
+                for (k = start1; --k >= 0 
+                         && isPartOfToken (seqi.charAt(k)); )
                     score += SCORE_MISMATCH;
             }
 
-            if (p.j >= 0) {
-                while (p.j < seqj.length() 
-                       && Character.isWhitespace(seqj.charAt(p.j)))
-                    ++p.j;
-                for (k = p.j; --k >= 0 && isPartOfToken (seqj.charAt(k)); )
+            if (start2 >= 0) {
+                while (start2 < seqj.length() 
+                       && Character.isWhitespace(seqj.charAt(start2)))
+                    ++start2;
+                for (k = start2; --k >= 0 
+                         && isPartOfToken (seqj.charAt(k)); )
                     score += SCORE_MISMATCH;
             }
 
-            p = trace.get(trace.size()-1);
-            if (p.i >= 0) {
+            // a single pair is both the start and the end
+            end1 = size > 1 ? trace[trace.length-2] : start1;
+            end2 = size > 1 ? trace[trace.length-1] : start2;
+            if (end1 >= 0) {
                 /*
-                 * likewise for suffix
+                 * likewise for suffix; a lone whitespace pair at the
+                 * end has been moved past it above
                  */
-                while (p.i > 0 && Character.isWhitespace(seqi.charAt(p.i)))
-                    --p.i;
-                for (k = p.i; ++k < seqi.length() 
+                while (end1 > 0 && (end1 >= seqi.length()
+                       || Character.isWhitespace(seqi.charAt(end1))))
+                    --end1;
+                for (k = end1; ++k < seqi.length() 
                          && isPartOfToken (seqi.charAt(k)); )
                     score += SCORE_MISMATCH;
             }
 
-            if (p.j >= 0) {
-                while (p.j > 0 && Character.isWhitespace(seqj.charAt(p.j)))
-                    --p.j;
-                for (k = p.j; ++k < seqj.length()
+            if (end2 >= 0) {
+                while (end2 > 0 && (end2 >= seqj.length()
+                       || Character.isWhitespace(seqj.charAt(end2))))
+                    --end2;
+                for (k = end2; ++k < seqj.length()
                          && isPartOfToken (seqj.charAt(k)); )
                     score += SCORE_MISMATCH;
             }
+            if (size == 1) {
+                start1 = end1;
+                start2 = end2;
+            }
 
             if (score < 0) score = 0;
 
-            this.seqi = seqi;
-            this.seqj = seqj;
-
             globalSim = (double)score/(seqi.length() + seqj.length());
             localSim = (double)score/max;
 
-            double r = (double)matches.cardinality() 
+            double r = (double)matches
                 / Math.max(seqi.length(), seqj.length());
             similarity = r * localSim + (1 - r)*globalSim;
-
-            alignment = sb1+" ["+token1()+"]\n"+sb2+"\n"
-                +sb3 + " ["+token2()+"]";
         }
 
         static boolean isPartOfToken (char ch) {
@@ -183,16 +179,26 @@ public class SmithWaterman implements Comparator<SmithWaterman.Alignment> {
             if (d < 0.) return -1;
             if (d > 0.) return 1;
 
-            return a.matches.cardinality() - matches.cardinality();
+            return a.matches - matches;
         }
 
-        public BitSet extent1 () { return extent1; }
-        public BitSet extent2 () { return extent2; }
+        public BitSet extent1 () { return extent (0); }
+        public BitSet extent2 () { return extent (1); }
         public BitSet overlap1 (BitSet ext) {
-            return overlap (extent1, ext);
+            return overlap (extent1 (), ext);
         }
         public BitSet overlap2 (BitSet ext) {
-            return overlap (extent2, ext);
+            return overlap (extent2 (), ext);
+        }
+
+        BitSet extent (int off) {
+            BitSet ext = new BitSet ();
+            for (int k = 0; k < scored; ++k) {
+                int i = trace[2*k+off];
+                if (i >= 0)
+                    ext.set(i);
+            }
+            return ext;
         }
 
         public static BitSet overlap (BitSet ref, BitSet ext) {
@@ -203,20 +209,20 @@ public class SmithWaterman implements Comparator<SmithWaterman.Alignment> {
 
         // return the extent of this alignment
         public String token1 () {
-            return token (alignA, seqi);
+            return token (0, seqi);
         }
         public String token2 () {
-            return token (alignB, seqj);
+            return token (1, seqj);
         }
 
-        protected static String token (int[] align, CharSequence seq) {
-            int i = align[0];
+        protected String token (int off, CharSequence seq) {
+            int i = index (0, off);
             for (int k = 1; i < 0; ++k)
-                i = align[k];
+                i = index (k, off);
 
-            int j = align[align.length-1];
-            for (int k = align.length-1; j < 0; --k)
-                j = align[k];
+            int j = index (size () - 1, off);
+            for (int k = size () - 1; j < 0; --k)
+                j = index (k, off);
 
             // now the extent is the substring that extends both directions
             //  until isPartOfToken return false
@@ -227,32 +233,70 @@ public class SmithWaterman implements Comparator<SmithWaterman.Alignment> {
             while (j < seq.length() && isPartOfToken(seq.charAt(j)))
                 ++j;
 
-            StringBuilder ext = new StringBuilder ();
-            for (int k = i; k < j; ++k)
-                ext.append(seq.charAt(k));
+            return i < j ? seq.subSequence(i, j).toString() : "";
+        }
+
+        // pairs past a gap in both weren't scored and read as 0
+        int index (int k, int off) {
+            return k < scored ? trace[2*k+off] : 0;
+        }
+
+        /*
+         * the trace with the adjusted end points, which is what gets
+         * merged with an adjacent alignment; a start moved past trailing
+         * whitespace is kept at the last char
+         */
+        int[] pairs () {
+            int[] pairs = trace.clone();
+            pairs[0] = clamp (start1, seqi);
+            pairs[1] = clamp (start2, seqj);
+            pairs[pairs.length-2] = clamp (end1, seqi);
+            pairs[pairs.length-1] = clamp (end2, seqj);
+            return pairs;
+        }
 
-            return ext.toString();
+        static int clamp (int p, CharSequence seq) {
+            return p >= seq.length() ? seq.length() - 1 : p;
         }
 
         public double similarity () { return similarity; }
-        protected List<Pair> trace () { return trace; }
-        public int size () { return trace.size(); }
-        public int index1 (int k) { return alignA[k]; }
-        public int index2 (int k) { return alignB[k]; }
+        public int size () { return trace.length / 2; }
+        public int index1 (int k) { return index (k, 0); }
+        public int index2 (int k) { return index (k, 1); }
+        public int start1 () { return start1; }
+        public int start2 () { return start2; }
+        public int end1 () { return end1; }
+        public int end2 () { return end2; }
         public int score () { return score; }
+        public int matches () { return matches; }
         public double global () { return globalSim; }
         public double local () { return localSim; }
-        public String toString () { return alignment; }
-    }
 
-    public static class Pair {
-        public int i, j;
-        Pair (int i, int j) {
-            this.i = i;
-            this.j = j;
-        }
         public String toString () {
-            return "("+i+","+j+")";
+            StringBuilder sb1 = new StringBuilder ();
+            StringBuilder sb2 = new StringBuilder ();
+            StringBuilder sb3 = new StringBuilder ();
+            for (int k = 0; k < scored; ++k) {
+                int pi = trace[2*k], pj = trace[2*k+1];
+                if (pi >= 0 && pj >= 0) {
+                    char a = seqi.charAt(pi), b = seqj.charAt(pj);
+                    sb1.append(a);
+                    sb2.append(compare (a, b) > 0 ? '|' : ' ');
+                    sb3.append(b);
+                }
+                else if (pi >= 0) {
+                    sb1.append(seqi.charAt(pi));
+                    sb2.append(' ');
+                    sb3.append('-');
+                }
+                else if (pj >= 0) {
+                    sb1.append('-');
+                    sb2.append(' ');
+                    sb3.append(seqj.charAt(pj));
+                }
+            }
+            return sb1+" ["+token1()+"]\n"+sb2+"\n"
+                +sb3 + " ["+token2()+"]";
         }
     }
 
@@ -268,12 +312,54 @@ public class SmithWaterman implements Comparator<SmithWaterman.Alignment> {
         if (Character.isWhitespace(a) && Character.isWhitespace(b))
             return SCORE_MATCH_SPACE;
         */
-        return Character.toUpperCase(a) == Character.toUpperCase(b) 
-            ? SCORE_MATCH : SCORE_MISMATCH;
+        return fold (a) == fold (b) ? SCORE_MATCH : SCORE_MISMATCH;
+    }
+
+    // the case folding compare() matches on
+    public static char fold (char ch) {
+        return Character.toUpperCase(ch);
+    }
+
+    public static String fold (CharSequence seq) {
+        char[] folded = new char[seq.length()];
+        for (int i = 0; i < folded.length; ++i)
+            folded[i] = fold (seq.charAt(i));
+        return new String (folded);
     }
 
     protected int minAlignment = DEFAULT_MIN_ALIGNMENT;
+    protected int maxAlignments = MAX_ALIGNMENTS;
+    protected int band = BAND;
     protected Score score = new DefaultScore ();
+    protected int end1, end2; // end cell of the last score() or align()
+
+    /*
+     * grow-only work areas reused across calls so that an aligner
+     * per thread runs without garbage; the matrices are (n+1)x(m+1)
+     * row-major with stride m+1
+     */
+    protected int[] h = new int[0];
+    protected int[] path = new int[0];
+    protected int[] rows = new int[0];
+    // per row of the last fill, its highest score and the last column
+    protected int[] rowBest = new int[0];
+    protected int[] rowEnd = new int[0];
+    protected int[] back = new int[0]; // traceback, filled from the end
+    protected int[] target = new int[0]; // folded seqj
+    /*
+     * query profile for DefaultScore: the folded query and, for each of
+     * its positions, the score against every folded ASCII char; kept
+     * for as long as the same String is aligned
+     */
+    protected CharSequence profiled;
+    protected int[] query = new int[0];
+    protected int[] profile = new int[0];
+    // batch score(); lane l of column j is at j*LANES+l
+    protected int[] columns = new int[0];
+    protected int[] lanes = new int[0];
+    protected final int[] diag = new int[LANES];
+    protected final int[] left = new int[LANES];
+    protected final int[] best = new int[LANES];
     protected LinkedList<Alignment> alignments = new LinkedList<Alignment>();
 
     public SmithWaterman () { }
@@ -284,113 +370,374 @@ public class SmithWaterman implements Comparator<SmithWaterman.Alignment> {
     public void setScore (Score score) { this.score = score; }
     public Score getScore () { return score; }
 
-    public int align (CharSequence seqi, CharSequence seqj) {
-        int max, i, j, n = seqi.length(), m = seqj.length();
+    /**
+     * Half width of the band around the diagonal the thresholded score
+     * passes start with; 0 (or less) turns banding off. See
+     * score(CharSequence,CharSequence,char[],int,int).
+     */
+    public void setBand (int band) { this.band = band; }
+    public int getBand () { return band; }
+
+    /*
+     * fill in the query profile for seqi unless it's already there; a
+     * String can't change behind our back, anything else is redone
+     */
+    protected void profile (CharSequence seqi) {
+        if (seqi == profiled && seqi instanceof String)
+            return;
+
+        int n = seqi.length();
+        if (query.length < n) {
+            query = new int[n];
+            profile = new int[n << 7];
+        }
+        int[] query = this.query, profile = this.profile;
+        for (int i = 0; i < n; ++i) {
+            int c = fold (seqi.charAt(i)), row = i << 7;
+            query[i] = c;
+            for (int a = 0; a < 128; ++a)
+                profile[row+a] = SCORE_MISMATCH;
+            if (c < 128)
+                profile[row+c] = SCORE_MATCH;
+        }
+        profiled = seqi;
+    }
+
+    // folded seqj, or the same already folded in folded[offset...]
+    protected int[] target (CharSequence seqj, char[] folded, int offset) {
+        int m = seqj.length();
+        if (target.length < m)
+            target = new int[m];
+        int[] target = this.target;
+        if (folded != null)
+            for (int j = 0; j < m; ++j)
+                target[j] = folded[offset+j];
+        else
+            for (int j = 0; j < m; ++j)
+                target[j] = fold (seqj.charAt(j));
+        return target;
+    }
 
-        int[][] h = new int[n+1][m+1];
-        int[][] path = new int[n+1][m+1]; // paths
-        for (i = 1; i <= n; ++i) {
+    /**
+     * Score-only pass over two rolling rows; returns the best local
+     * score and leaves its end cell in getEnd1()/getEnd2(). Ties go
+     * to the same cell the full alignment would trace back from.
+     */
+    public int score (CharSequence seqi, CharSequence seqj) {
+        int n = seqi.length(), m = seqj.length(), stride = m + 1;
+        if (rows.length < 2*stride)
+            rows = new int[2*stride];
+        int[] rows = this.rows;
+        for (int j = 0; j <= m; ++j)
+            rows[j] = 0;
+        rows[stride] = 0;
+
+        int best = 0, prev = 0, curr = stride;
+        end1 = n;
+        end2 = m;
+        for (int i = 1; i <= n; ++i) {
             char ci = seqi.charAt(i-1);
-            for (j = 1; j <= m; ++j) {
-                char cj = seqj.charAt(j -1);
-                int s1 = h[i-1][j-1] + score.sub(ci, cj);
-                int s2 = h[i-1][j] + score.del(ci);
-                int s3 = h[i][j-1] + score.ins(cj);
+            int del = score.del(ci);
+            for (int j = 1; j <= m; ++j) {
+                char cj = seqj.charAt(j-1);
+                int max = Math.max
+                    (Math.max(rows[prev+j-1] + score.sub(ci, cj), 0),
+                     Math.max(rows[prev+j] + del, 
+                              rows[curr+j-1] + score.ins(cj)));
+                rows[curr+j] = max;
+                if (max > 0 && max >= best) {
+                    best = max;
+                    end1 = i;
+                    end2 = j;
+                }
+            }
+            prev = curr;
+            curr = stride - curr;
+        }
 
-                max = Math.max(Math.max(s1, 0), Math.max(s2, s3));
-                if (max == s1) path[i][j] |= 1;
-                if (max == s2) path[i][j] |= 2;
-                if (max == s3) path[i][j] |= 4;
+        return best;
+    }
 
-                h[i][j] = max;
+    /**
+     * Best local score if it's at least minScore; otherwise anything
+     * below minScore. seqj is also given case folded in folded[offset]
+     * onwards, or null to fold it here.
+     *
+     * With a band (and DefaultScore) only the cells within the band
+     * of the diagonal are computed at first. A path through a cell at
+     * offset d = i - j has at most j + n - i = n - d matches on one
+     * side of d > 0 (m + d on the other), so any path that leaves a
+     * band of k scores at most out = 2(max(n,m) - k - 1). The banded
+     * best is exact if it's above out, and the pair is out of reach if
+     * both are below minScore; otherwise the band is doubled, up to
+     * the full matrix.
+     */
+    public int score (CharSequence seqi, CharSequence seqj, 
+                      char[] folded, int offset, int minScore) {
+        int n = seqi.length(), m = seqj.length(), len = Math.max(n, m);
+        if (band > 0 && isBounded ()) {
+            int[] target = target (seqj, folded, offset);
+            for (int k = band; k < len; k *= 2) {
+                int best = band (seqi, target, m, k);
+                int out = 2 * (len - k - 1);
+                if (best > out)
+                    return best;
+                if (Math.max(best, out) < minScore)
+                    return Math.max(best, out);
             }
         }
+        return score (seqi, seqj);
+    }
+
+    /*
+     * score pass over the cells within k of the diagonal; the cells
+     * outside read as 0, so this is the best of the paths that stay
+     * within the band, with its end cell in end1 and end2 as usual
+     */
+    protected int band (CharSequence seqi, int[] target, int m, int k) {
+        int n = seqi.length(), stride = m + 1;
+        profile (seqi);
+        if (rows.length < 2*stride)
+            rows = new int[2*stride];
+        int[] rows = this.rows, query = this.query, profile = this.profile;
+        for (int j = 0; j < 2*stride; ++j)
+            rows[j] = 0;
+
+        int best = 0, prev = 0, curr = stride;
+        end1 = n;
+        end2 = m;
+        for (int i = 1; i <= n && i - k <= m; ++i) {
+            int ci = query[i-1], prof = (i - 1) << 7;
+            int lo = Math.max(1, i - k), hi = Math.min(m, i + k);
+            // the column left of the band was in the band two rows up;
+            // (i-1, i+k) was never in a band so it's still 0
+            rows[curr+lo-1] = 0;
+            for (int j = lo; j <= hi; ++j) {
+                int cj = target[j-1];
+                int sub = cj < 128 ? profile[prof+cj] 
+                    : cj == ci ? SCORE_MATCH : SCORE_MISMATCH;
+                int max = Math.max
+                    (Math.max(rows[prev+j-1] + sub, 0),
+                     Math.max(rows[prev+j], rows[curr+j-1]) 
+                     + SCORE_MISMATCH);
+                rows[curr+j] = max;
+                if (max > 0 && max >= best) {
+                    best = max;
+                    end1 = i;
+                    end2 = j;
+                }
+            }
+            prev = curr;
+            curr = stride - curr;
+        }
+
+        return best;
+    }
+
+    /**
+     * Batch score pass of one query against many targets at once;
+     * target t is text[offsets[t]] up to text[offsets[t+1]] and
+     * scores[k] is set to score(query, target) for t = targets[k].
+     * The targets go LANES at a time, one per lane, with their folded
+     * characters interleaved column by column so that the innermost
+     * loop runs across lanes with nothing carried from one lane to the
+     * next; that's the shape the JIT turns into vector instructions.
+     * The scores are exact for DefaultScore; any other Score falls
+     * back to the scalar pass, one target at a time. If not null,
+     * folded is the same text already case folded. With a band set and
+     * minScores given, each target instead goes through the banded
+     * pass, and scores[k] is only exact if it's at least minScores[k].
+     */
+    public void score (CharSequence seqi, char[] text, char[] folded, 
+                       int[] offsets, int[] targets, int count, 
+                       int[] minScores, int[] scores) {
+        if (band > 0 && minScores != null && isBounded ()) {
+            for (int k = 0; k < count; ++k) {
+                int t = targets[k], len = offsets[t+1] - offsets[t];
+                scores[k] = score 
+                    (seqi, CharBuffer.wrap(text, offsets[t], len),
+                     folded, offsets[t], minScores[k]);
+            }
+            return;
+        }
+
+        if (score.getClass() != DefaultScore.class) {
+            for (int k = 0; k < count; ++k) {
+                int t = targets[k];
+                scores[k] = score (seqi, CharBuffer.wrap
+                                   (text, offsets[t], 
+                                    offsets[t+1] - offsets[t]));
+            }
+            return;
+        }
+
+        int n = seqi.length();
+        profile (seqi);
+        int[] query = this.query;
+
+        int[] diag = this.diag, left = this.left, best = this.best;
+        for (int k = 0; k < count; k += LANES) {
+            int width = Math.min(LANES, count - k), m = 0;
+            for (int l = 0; l < width; ++l) {
+                int t = targets[k+l];
+                m = Math.max(m, offsets[t+1] - offsets[t]);
+            }
+
+            int size = (m + 1) * LANES;
+            if (columns.length < size) {
+                columns = new int[size];
+                lanes = new int[size];
+            }
+            int[] columns = this.columns, h = this.lanes;
+            /*
+             * columns past the end of a lane never match, so they
+             * score below some cell of the lane and never reach best
+             */
+            for (int l = 0; l < LANES; ++l) {
+                int off = 0, len = 0;
+                if (l < width) {
+                    int t = targets[k+l];
+                    off = offsets[t];
+                    len = offsets[t+1] - off;
+                }
+                for (int j = 0; j < m; ++j)
+                    columns[(j+1)*LANES+l] = j >= len ? NO_MATCH 
+                        : folded != null ? folded[off+j] : fold (text[off+j]);
+            }
+            for (int x = 0; x < size; ++x)
+                h[x] = 0;
+            for (int l = 0; l < LANES; ++l)
+                best[l] = 0;
+
+            // one row at a time in place; diag and left carry the
+            // (i-1,j-1) and (i,j-1) cells of each lane
+            for (int i = 0; i < n; ++i) {
+                int ci = query[i];
+                for (int l = 0; l < LANES; ++l)
+                    diag[l] = left[l] = 0;
+                for (int col = LANES; col < size; col += LANES) {
+                    for (int l = 0; l < LANES; ++l) {
+                        int up = h[col+l];
+                        // 1 if equal, else 0; no branch to vectorize
+                        int eq = ((columns[col+l] ^ ci) - 1) >>> 31;
+                        int sub = SCORE_MISMATCH 
+                            + (SCORE_MATCH - SCORE_MISMATCH) * eq;
+                        int max = Math.max
+                            (Math.max(diag[l] + sub, 0),
+                             Math.max(up + SCORE_MISMATCH,
+                                      left[l] + SCORE_MISMATCH));
+                        diag[l] = up;
+                        left[l] = max;
+                        h[col+l] = max;
+                        best[l] = Math.max(best[l], max);
+                    }
+                }
+            }
+
+            for (int l = 0; l < width; ++l)
+                scores[k+l] = best[l];
+        }
+    }
+
+    /**
+     * Whether score() bounds the score of every alignment align() can
+     * return; see align(CharSequence,CharSequence,int)
+     */
+    public boolean isBounded () {
+        return score.getClass() == DefaultScore.class;
+    }
+
+    public int getEnd1 () { return end1; }
+    public int getEnd2 () { return end2; }
+
+    /**
+     * Two-phase alignment: the traceback matrices are only built when
+     * the best local score can reach minScore. This is only a bound
+     * for DefaultScore, since Alignment always rescores its trace with
+     * compare(); any other Score goes straight to the full alignment.
+     */
+    public int align (CharSequence seqi, CharSequence seqj, int minScore) {
+        if (minScore > 0 && isBounded () 
+            && score (seqi, seqj, null, 0, minScore) < minScore) {
+            alignments.clear();
+            return 0;
+        }
+        return align (seqi, seqj);
+    }
+
+    public int align (CharSequence seqi, CharSequence seqj) {
+        return align (seqi, seqj, null, 0);
+    }
+
+    /**
+     * Same as align(seqi, seqj) with seqj given case folded as well in
+     * folded[offset] onwards (or null to fold it here). DefaultScore
+     * goes through a monomorphic fill off the query profile; any other
+     * Score through the Score interface. An empty sequence has no
+     * alignment.
+     */
+    public int align (CharSequence seqi, CharSequence seqj, 
+                      char[] folded, int offset) {
+        int i, j, n = seqi.length(), m = seqj.length();
+        if (n == 0 || m == 0) {
+            alignments.clear();
+            return 0;
+        }
+        int stride = m + 1, size = (n + 1) * stride;
+        if (h.length < size) {
+            h = new int[size];
+            path = new int[size];
+        }
+        if (rowBest.length <= n) {
+            rowBest = new int[n+1];
+            rowEnd = new int[n+1];
+        }
+        int[] h = this.h, path = this.path;
+        for (j = 0; j <= m; ++j)
+            h[j] = path[j] = 0;
+
+        if (score.getClass() == DefaultScore.class)
+            fill (seqi, target (seqj, folded, offset), m);
+        else
+            fill (seqi, seqj);
 
         alignments.clear();
         // find best alignment first... 
-        max = 0;
-        Pair pp = new Pair (n, m);
-        for (i = n; i > 0; --i)
-            for (j = m; j > 0; --j) 
-                if (h[i][j] > max) {
-                    max = h[i][j];
-                    pp.i = i;
-                    pp.j = j;
-                }
-        LinkedList<Pair> tr = alignment (pp.i, pp.j, path);
+        int[] tr = alignment (end1, end2, stride);
         alignments.add(new Alignment (seqi, seqj, tr));
-        pp = tr.peekFirst();
-
-        // then the rest of the alignments
-        for (i = n; i > 0; --i)
-            for (j = m; j > 0; --j)
-                // search for the longest alignment...
-                if (path[i][j] == 1) {
-                    tr = alignment (i, j, path);
-                    if (tr.size() > 1) {
-                        Pair p = tr.peekLast();
-                        Alignment aln = new Alignment (seqi, seqj, tr);
-
-                        if (aln.score() > 0) {
-                            Alignment last = alignments.peek();
-                            BitSet ext1 = last.overlap1(aln.extent1());
-                            BitSet ext2 = last.overlap2(aln.extent2());
-
-                            if (ext1.equals(aln.extent1()) 
-                                || ext2.equals(aln.extent2()))
-                                aln = null; // containment
-                            else if (Math.abs(pp.i-p.i) <= 1 
-                                     && Math.abs(pp.j-p.j) <= 1) {
-                                /*
-                                 * overlap such as this example
-                                 * 'testosterone undecanoate' 
-                                 * 'TESTOSTERONE DECANOATE'
-                                 */
-
-                                List<Pair> merged = new ArrayList<Pair>();
-                                merged.addAll(tr);
-                                merged.addAll(last.trace());
-
-                                BitSet x = new BitSet ();
-                                BitSet y = new BitSet ();
-                                for (int k = merged.size(); --k >= 0; ) {
-                                    Pair bp = merged.get(k);
-                                    if (bp.i >= 0) 
-                                        if (x.get(bp.i)) 
-                                            bp.i = -bp.i;
-                                        else
-                                            x.set(bp.i);
-                                    if (bp.j >= 0)
-                                        if (y.get(bp.j)) 
-                                            bp.j = -bp.j;
-                                        else
-                                            y.set(bp.j);
-                                }
-
-                                if (DEBUG > 2) {
-                                    System.out.println
-                                        ("*** OVERLAP *** "+pp+" "+p);
-                                    for (Pair bp : merged) {
-                                        System.out.println(bp);
-                                    }
-                                    System.out.println
-                                        (merged.size()+" pairs!");
-                                }
-
-                                //alignments.add(aln);
-                                aln = new Alignment (seqi, seqj, merged);
-                                if (aln.score() == 0)
-                                    aln = null;
-
-                                pp = tr.peekFirst();
-                            }
-                            
-                            if (aln != null)
-                                alignments.push(aln);
-                        }
+
+        /*
+         * then the rest in decreasing order of score, Waterman-Eggert
+         * style: the cells of each traceback are blocked and only the
+         * scores that depend on them are recomputed, so the next best
+         * cell (off the row maxima) starts an alignment that shares no
+         * pair with the ones before
+         */
+        for (int k = 1; k < maxAlignments && tr.length > 0; ++k) {
+            declump (seqi, seqj, tr);
+
+            int besti = 0, best = 0;
+            do {
+                if (best > 0)
+                    peak (besti, stride);
+                best = 0;
+                for (i = 1; i <= n; ++i)
+                    if (rowBest[i] > 0 && rowBest[i] >= best) {
+                        best = rowBest[i];
+                        besti = i;
                     }
-                }
+            }
+            while (best > 0 && rowEnd[besti] == 0);
+            if (best == 0 || best < minAlignment)
+                break;
 
+            tr = alignment (besti, rowEnd[besti], stride);
+            if (tr.length > 2) {
+                Alignment aln = new Alignment (seqi, seqj, tr);
+                if (aln.score() > 0)
+                    add (seqi, seqj, aln);
+            }
+        }
         // sort in descreasing score
         Collections.sort(alignments);
 
@@ -405,6 +752,272 @@ public class SmithWaterman implements Comparator<SmithWaterman.Alignment> {
         return alignments.size();
     }
 
+    /*
+     * add a secondary alignment unless its extent in either sequence
+     * is within that of one already found; one that ends where another
+     * starts (or starts where another ends) is merged with it instead
+     */
+    protected void add (CharSequence seqi, CharSequence seqj, Alignment aln) {
+        BitSet ext1 = aln.extent1(), ext2 = aln.extent2();
+        for (Alignment a : alignments)
+            if (contains (a.extent1(), ext1) || contains (a.extent2(), ext2))
+                return; // containment
+
+        for (ListIterator<Alignment> it = alignments.listIterator(); 
+             it.hasNext(); ) {
+            Alignment a = it.next(), merged;
+            if (adjacent (aln, a))
+                merged = merge (seqi, seqj, aln, a);
+            else if (adjacent (a, aln))
+                merged = merge (seqi, seqj, a, aln);
+            else
+                continue;
+
+            if (merged.score() > 0)
+                it.set(merged);
+            return;
+        }
+        alignments.add(aln);
+    }
+
+    // does b start where a ends?
+    static boolean adjacent (Alignment a, Alignment b) {
+        int di = b.start1() - a.end1(), dj = b.start2() - a.end2();
+        return di >= 0 && di <= 1 && dj >= 0 && dj <= 1;
+    }
+
+    /*
+     * overlap such as this example
+     * 'testosterone undecanoate' 
+     * 'TESTOSTERONE DECANOATE'
+     * only when a ends where b starts; a crossing merge isn't an
+     * alignment and can outscore the best one
+     */
+    static Alignment merge (CharSequence seqi, CharSequence seqj,
+                            Alignment a, Alignment b) {
+        int[] next = a.pairs(), prior = b.pairs();
+        int[] merged = new int[next.length+prior.length];
+        System.arraycopy(next, 0, merged, 0, next.length);
+        System.arraycopy(prior, 0, merged, next.length, prior.length);
+
+        BitSet x = new BitSet ();
+        BitSet y = new BitSet ();
+        for (int k = merged.length; (k -= 2) >= 0; ) {
+            int bi = merged[k], bj = merged[k+1];
+            if (bi >= 0) 
+                if (x.get(bi)) 
+                    merged[k] = ~bi;
+                else
+                    x.set(bi);
+            if (bj >= 0)
+                if (y.get(bj)) 
+                    merged[k+1] = ~bj;
+                else
+                    y.set(bj);
+        }
+
+        if (DEBUG > 2) {
+            System.out.println("*** OVERLAP *** ("+b.start1()+","+b.start2()
+                               +") ("+a.end1()+","+a.end2()+")");
+            for (int k = 0; k < merged.length; k += 2)
+                System.out.println("("+merged[k]+","+merged[k+1]+")");
+            System.out.println((merged.length/2)+" pairs!");
+        }
+        return new Alignment (seqi, seqj, merged);
+    }
+
+    /*
+     * Waterman-Eggert declumping: the cells of the traceback tr are
+     * blocked (the traceback already set their path to -1) and scored 0
+     * from now on, and the scores that depend on them recomputed row
+     * by row, only as far as something changed; DefaultScore goes
+     * off the query profile and target of the fill
+     */
+    protected void declump (CharSequence seqi, CharSequence seqj, int[] tr) {
+        int n = seqi.length(), m = seqj.length(), stride = m + 1;
+        int[] h = this.h, path = this.path;
+        int[] query = this.query, profile = this.profile, target = this.target;
+        boolean profiled = score.getClass() == DefaultScore.class;
+        // the traceback runs from its top left cell to its bottom right
+        int top = index (tr[0]) + 1, bottom = index (tr[tr.length-2]) + 1;
+        int left = index (tr[1]) + 1, right = index (tr[tr.length-1]) + 1;
+        int lo = left, hi = right;
+        for (int i = top; i <= n; ++i) {
+            if (i <= bottom) {
+                lo = Math.min(lo, left);
+                hi = Math.max(hi, right);
+            }
+            char ci = seqi.charAt(i-1);
+            int qi = profiled ? query[i-1] : 0, prof = (i - 1) << 7;
+            int row = i * stride, up = row - stride;
+            int first = 0, last = 0;
+            boolean changed = false;
+            for (int j = lo; j <= m && (j <= hi + 1 || changed); ++j) {
+                int cell = row + j, max = 0;
+                if (path[cell] != -1) {
+                    int s1, s2, s3;
+                    if (profiled) {
+                        int tj = target[j-1];
+                        s1 = h[up+j-1] + (tj < 128 ? profile[prof+tj] 
+                                          : tj == qi ? SCORE_MATCH 
+                                          : SCORE_MISMATCH);
+                        s2 = h[up+j] + SCORE_MISMATCH;
+                        s3 = h[cell-1] + SCORE_MISMATCH;
+                    }
+                    else {
+                        char cj = seqj.charAt(j-1);
+                        s1 = h[up+j-1] + score.sub(ci, cj);
+                        s2 = h[up+j] + score.del(ci);
+                        s3 = h[cell-1] + score.ins(cj);
+                    }
+
+                    max = Math.max(Math.max(s1, 0), Math.max(s2, s3));
+                    int dir = 0;
+                    if (max == s1) dir |= 1;
+                    if (max == s2) dir |= 2;
+                    if (max == s3) dir |= 4;
+                    path[cell] = dir;
+                }
+                changed = max != h[cell];
+                if (changed) {
+                    h[cell] = max;
+                    if (first == 0)
+                        first = j;
+                    last = j;
+                }
+            }
+
+            if (first == 0) {
+                if (i >= bottom)
+                    break;
+            }
+            else {
+                /*
+                 * scores only ever go down here, so when the cell of
+                 * the row maximum did, the maximum is kept as a bound
+                 * and the row marked (rowEnd 0) to be looked at again
+                 * if it ever comes up as the best
+                 */
+                if (rowEnd[i] > 0 && h[row+rowEnd[i]] != rowBest[i])
+                    rowEnd[i] = 0;
+                lo = first;
+                hi = last;
+            }
+        }
+    }
+
+    // the highest score of row i and its last column
+    protected void peak (int i, int stride) {
+        int[] h = this.h;
+        int row = i * stride, best = 0, end = 0;
+        for (int j = 1; j < stride; ++j)
+            if (h[row+j] > 0 && h[row+j] >= best) {
+                best = h[row+j];
+                end = j;
+            }
+        rowBest[i] = best;
+        rowEnd[i] = end;
+    }
+
+    static int index (int pair) { return pair < 0 ? ~pair : pair; }
+
+    // is ext a subset of ref?
+    /*
+     * the fills leave the end cell of the best alignment, which is the
+     * last cell with the highest score, in end1 and end2, and the
+     * highest score of each row in rowBest and rowEnd
+     */
+    protected void fill (CharSequence seqi, CharSequence seqj) {
+        int n = seqi.length(), m = seqj.length(), stride = m + 1;
+        int[] h = this.h, path = this.path;
+        int besti = n, bestj = m, best = 0;
+        for (int i = 1; i <= n; ++i) {
+            char ci = seqi.charAt(i-1);
+            int row = i * stride, up = row - stride;
+            h[row] = path[row] = 0;
+            int peak = 0, end = 0;
+            for (int j = 1; j <= m; ++j) {
+                char cj = seqj.charAt(j -1);
+                int s1 = h[up+j-1] + score.sub(ci, cj);
+                int s2 = h[up+j] + score.del(ci);
+                int s3 = h[row+j-1] + score.ins(cj);
+
+                int max = Math.max(Math.max(s1, 0), Math.max(s2, s3));
+                int dir = 0;
+                if (max == s1) dir |= 1;
+                if (max == s2) dir |= 2;
+                if (max == s3) dir |= 4;
+
+                h[row+j] = max;
+                path[row+j] = dir;
+                if (max > 0 && max >= peak) {
+                    peak = max;
+                    end = j;
+                }
+            }
+            rowBest[i] = peak;
+            rowEnd[i] = end;
+            if (peak > 0 && peak >= best) {
+                best = peak;
+                besti = i;
+                bestj = end;
+            }
+        }
+        end1 = besti;
+        end2 = bestj;
+    }
+
+    protected void fill (CharSequence seqi, int[] target, int m) {
+        int n = seqi.length(), stride = m + 1;
+        profile (seqi);
+        int[] h = this.h, path = this.path;
+        int[] query = this.query, profile = this.profile;
+        int besti = n, bestj = m, best = 0;
+        for (int i = 1; i <= n; ++i) {
+            int ci = query[i-1], prof = (i - 1) << 7;
+            int row = i * stride, up = row - stride;
+            h[row] = path[row] = 0;
+            int peak = 0, end = 0;
+            for (int j = 1; j <= m; ++j) {
+                int cj = target[j-1];
+                int s1 = h[up+j-1] + (cj < 128 ? profile[prof+cj] 
+                                      : cj == ci ? SCORE_MATCH 
+                                      : SCORE_MISMATCH);
+                int s2 = h[up+j] + SCORE_MISMATCH;
+                int s3 = h[row+j-1] + SCORE_MISMATCH;
+
+                int max = Math.max(Math.max(s1, 0), Math.max(s2, s3));
+                int dir = 0;
+                if (max == s1) dir |= 1;
+                if (max == s2) dir |= 2;
+                if (max == s3) dir |= 4;
+
+                h[row+j] = max;
+                path[row+j] = dir;
+                if (max > 0 && max >= peak) {
+                    peak = max;
+                    end = j;
+                }
+            }
+            rowBest[i] = peak;
+            rowEnd[i] = end;
+            if (peak > 0 && peak >= best) {
+                best = peak;
+                besti = i;
+                bestj = end;
+            }
+        }
+        end1 = besti;
+        end2 = bestj;
+    }
+
+    static boolean contains (BitSet ref, BitSet ext) {
+        for (int i = ext.nextSetBit(0); i >= 0; i = ext.nextSetBit(i+1))
+            if (!ref.get(i))
+                return false;
+        return true;
+    }
+
     public int compare (Alignment a, Alignment b) {
         int d = b.score() - a.score();
         if (d == 0) {
@@ -413,32 +1026,47 @@ public class SmithWaterman implements Comparator<SmithWaterman.Alignment> {
         return d;
     }
 
-    LinkedList<Pair> alignment (int i, int j, int[][]path) {
-        LinkedList<Pair> tr = new LinkedList<Pair>();
+    /*
+     * trace back from cell (i,j) and return the packed (i,j) pairs in
+     * alignment order
+     */
+    int[] alignment (int i, int j, int stride) {
+        int[] path = this.path;
+        if (back.length < 2*(i + j))
+            back = new int[2*(i + j)];
+        int[] tr = back;
+        int k = tr.length;
 
         if (DEBUG > 1)
             System.out.print("("+i+","+j+")");
 
-        Pair pp = null;
+        int pi = -1, pj = -1;
         while (i > 0 && j > 0) {
-            Pair p = new Pair (i-1, j-1);
-            if (pp != null) {
-                // negative index denotes gap
-                if (p.i == pp.i)
-                    p.i = -p.i;
-                if (p.j == pp.j)
-                    p.j = -p.j;
-            }
-            tr.push(p);
-            path[i][j] = -1; // visited
-
-            if (path[i-1][j-1] == 1) {
+            int ti = i - 1, tj = j - 1;
+            if (pi >= 0) {
+                // negative index (~index so that 0 has one too) denotes
+                // gap; compare against the previous cell and not its
+                // already negated pair
+                if (ti == pi)
+                    ti = ~ti;
+                if (tj == pj)
+                    tj = ~tj;
+            }
+            pi = i - 1;
+            pj = j - 1;
+            tr[--k] = tj;
+            tr[--k] = ti;
+
+            int cell = i*stride + j;
+            path[cell] = -1; // visited
+
+            if (path[cell-stride-1] == 1) {
                 --i;
                 --j;
             }
-            else if (path[i-1][j] == 1)
+            else if (path[cell-stride] == 1)
                 --i;
-            else if (path[i][j-1] == 1)
+            else if (path[cell-1] == 1)
                 --j;
             else {
                 // bail out early 
@@ -447,17 +1075,27 @@ public class SmithWaterman implements Comparator<SmithWaterman.Alignment> {
 
             if (DEBUG > 1)
                 System.out.print(" ("+i+","+j+")");
-            pp = p;
         }
         if (DEBUG > 1)
             System.out.println();
 
-        return tr;
+        int[] pairs = new int[tr.length - k];
+        System.arraycopy(tr, k, pairs, 0, pairs.length);
+        return pairs;
     }
 
+    /**
+     * Least score of the alignments after the best one
+     */
     public void setMinAlignment (int size) { minAlignment = size;}
     public int getMinAlignment () { return minAlignment; }
 
+    /**
+     * Most alignments align() finds, the best one included
+     */
+    public void setMaxAlignments (int k) { maxAlignments = k; }
+    public int getMaxAlignments () { return maxAlignments; }
+
     public Alignment getBestAlignment () {
         return alignments.isEmpty() ? null : alignments.iterator().next();
     }
@@ -467,7 +1105,7 @@ public class SmithWaterman implements Comparator<SmithWaterman.Alignment> {
     }
 
     static void debug (PrintStream ps, CharSequence seqi, 
-                       CharSequence seqj, int[][] a) {
+                       CharSequence seqj, int[] a) {
         int n = seqi.length(), m = seqj.length();
         ps.print(" ");
         for (int j = 0; j < m; ++j)
@@ -476,7 +1114,7 @@ public class SmithWaterman implements Comparator<SmithWaterman.Alignment> {
         for (int i = 1; i <= n; ++i) {
             ps.printf("%1$c", seqi.charAt(i-1));
             for (int j = 1; j <= m; ++j) {
-                ps.printf(" %1$2d", a[i][j]);
+                ps.printf(" %1$2d", a[i*(m+1)+j]);
             }
             ps.println();
         }
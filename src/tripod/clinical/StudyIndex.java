@@ -0,0 +1,211 @@
+package tripod.clinical;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import tripod.clinical.ClinicalCrawler.Study;
+import tripod.clinical.ResultWriter.Row;
+
+/**
+ * The studies of the last run by NCT id, each with its last updated
+ * date, a hash of what it's matched on (its id, title and interventions)
+ * and the rows it gave in the match output.
+ * A study whose date and hash are the same as before doesn't have to be
+ * aligned again as long as the dictionary and settings (the settings
+ * fingerprint) haven't changed either; its rows are those of before.
+ * The studies of this run replace those of before on save().
+ *
+ * <pre>
+ * int MAGIC, int VERSION, long settings, int studies,
+ * studies x { string id, string updated, long hash, int rows,
+ *             rows x { string term, string class, [string dictionary
+ *                      term, double score, double global, double local] } }
+ * </pre>
+ * where a string is its int length and chars, and the class is -1 for a
+ * term that matched nothing, without the rest. An index of an older
+ * version is ignored.
+ */
+class StudyIndex {
+    static final Logger logger = Logger.getLogger
+        (StudyIndex.class.getName());
+
+    static final int MAGIC = 0x43545349; // CTSI
+    static final int VERSION = 3;
+
+    static class State {
+        final String updated;
+        final long hash;
+        final List<Row> rows;
+
+        State (String updated, long hash, List<Row> rows) {
+            this.updated = updated;
+            this.hash = hash;
+            this.rows = rows;
+        }
+    }
+
+    final File file;
+    final long settings;
+    boolean current; // before is for the same settings
+    final Map<String, State> before = new HashMap<String, State>();
+    final ConcurrentMap<String, State> after =
+        new ConcurrentHashMap<String, State>();
+
+    StudyIndex (File file, long settings) throws IOException {
+        this.file = file;
+        this.settings = settings;
+        if (file.exists())
+            load ();
+    }
+
+    void load () throws IOException {
+        DataInputStream in = new DataInputStream
+            (new BufferedInputStream (new FileInputStream (file)));
+        try {
+            if (in.readInt() != MAGIC)
+                throw new IOException (file+" is not a study index");
+            int version = in.readInt();
+            if (version != VERSION) {
+                logger.warning("Ignore "+file+" of version "+version);
+                return;
+            }
+            current = in.readLong() == settings;
+            for (int n = in.readInt(); n > 0; --n) {
+                String id = readString (in);
+                String updated = readString (in);
+                long hash = in.readLong();
+                List<Row> rows = new ArrayList<Row>();
+                for (int k = in.readInt(); k > 0; --k)
+                    rows.add(readRow (in));
+                before.put(id, new State (updated, hash, rows));
+            }
+        }
+        finally {
+            in.close();
+        }
+        logger.info(before.size()+" studies in "+file
+                    +(current ? "" : " for other settings"));
+    }
+
+    /**
+     * The rows of before if s is the same as it was then, in which
+     * case it's kept as is; null otherwise
+     */
+    public List<Row> unchanged (Study s) {
+        State old = before.get(s.id);
+        if (!current || old == null
+            || !old.updated.equals(updated (s)) || old.hash != hash (s))
+            return null;
+        after.put(s.id, old);
+        return old.rows;
+    }
+
+    /**
+     * Keep the rows of s for the next run; returns its rows of before,
+     * if any
+     */
+    public List<Row> put (Study s, List<Row> rows) {
+        after.put(s.id, new State (updated (s), hash (s), rows));
+        State old = before.get(s.id);
+        return old != null ? old.rows : null;
+    }
+
+    /**
+     * The studies of before not seen in this run, by id
+     */
+    public Map<String, List<Row>> removed () {
+        Map<String, List<Row>> removed = new TreeMap<String, List<Row>>();
+        for (Map.Entry<String, State> me : before.entrySet())
+            if (!after.containsKey(me.getKey()))
+                removed.put(me.getKey(), me.getValue().rows);
+        return removed;
+    }
+
+    public void save () throws IOException {
+        File temp = new File (file.getPath()+".tmp");
+        DataOutputStream out = new DataOutputStream
+            (new BufferedOutputStream (new FileOutputStream (temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(settings);
+            out.writeInt(after.size());
+            for (Map.Entry<String, State> me : after.entrySet()) {
+                State st = me.getValue();
+                AlignmentStore.writeString(out, me.getKey());
+                AlignmentStore.writeString(out, st.updated);
+                out.writeLong(st.hash);
+                out.writeInt(st.rows.size());
+                for (Row r : st.rows)
+                    writeRow (out, r);
+            }
+        }
+        finally {
+            out.close();
+        }
+
+        if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file))
+                throw new IOException ("Can't rename "+temp+" to "+file);
+        }
+        logger.info(after.size()+" studies kept in "+file);
+    }
+
+    static String updated (Study s) {
+        return s.updated != null ? s.updated : "";
+    }
+
+    /*
+     * only the fields the rows depend on, which are all a scan for
+     * StudyScanner.MATCH fills in; the rest depend on whether a chunk
+     * fell back to StudyParser
+     */
+    static long hash (Study s) {
+        List<String> fields = new ArrayList<String>();
+        fields.add(String.valueOf(s.id));
+        fields.add(String.valueOf(s.title));
+        fields.addAll(s.interventions);
+        return AlignmentStore.fingerprint(fields);
+    }
+
+    static void writeRow (DataOutputStream out, Row r) throws IOException {
+        AlignmentStore.writeString(out, r.term);
+        if (r.clazz == null) {
+            out.writeInt(-1);
+            return;
+        }
+        AlignmentStore.writeString(out, r.clazz);
+        AlignmentStore.writeString(out, r.ref);
+        out.writeDouble(r.similarity);
+        out.writeDouble(r.global);
+        out.writeDouble(r.local);
+    }
+
+    static Row readRow (DataInputStream in) throws IOException {
+        String term = readString (in);
+        String clazz = readString (in);
+        if (clazz == null)
+            return new Row (term);
+        return new Row (term, clazz, readString (in), in.readDouble(),
+                        in.readDouble(), in.readDouble());
+    }
+
+    // null for a length of -1
+    static String readString (DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0)
+            return null;
+        char[] s = new char[len];
+        for (int i = 0; i < s.length; ++i)
+            s[i] = in.readChar();
+        return new String (s);
+    }
+}
@@ -0,0 +1,120 @@
+package tripod.clinical;
+
+import java.io.InputStream;
+
+import javax.xml.parsers.*;
+import org.xml.sax.helpers.*;
+import org.xml.sax.*;
+
+import tripod.clinical.ClinicalCrawler.Study;
+import tripod.clinical.ClinicalCrawler.StudyHandler;
+
+/**
+ * SAX handler for a single clinical trials XML document (e.g., one zip
+ * entry) that hands each study with interventions to a StudyHandler
+ * as soon as its </study> is seen. The parse state is all here, so
+ * documents can be parsed side by side with a parser each.
+ */
+class StudyParser extends DefaultHandler {
+    /*
+     * transient parsing variables
+     */
+    Study study;
+    boolean isDrug = false;
+    StringBuffer content = new StringBuffer ();
+    StudyHandler handler;
+    int parsed; // studies handed to the handler
+    boolean summary = true; // report the studies parsed at the end
+
+    StudyParser (StudyHandler handler) {
+        this.handler = handler;
+    }
+
+    public int parse (InputStream is) throws Exception {
+        parsed = 0;
+        SAXParserFactory.newInstance().newSAXParser().parse(is, this);
+        return parsed;
+    }
+
+    public void startDocument () {
+    }
+
+    public void endDocument () {
+        if (summary)
+            System.err.println(parsed + " studies with drugs!");
+    }
+
+    public void startElement (String uri, String localName, String qName,
+			      Attributes attrs) {
+	//System.out.println("start " + qName);
+        if (qName.equals("search_results")) {
+        }
+        else if (qName.equals("study")) {
+            study = new Study ();
+        }
+        else if (qName.equals("intervention")) {
+            String type = attrs.getValue("type");
+            isDrug = type.equals("Drug");
+        }
+        content.setLength(0);
+    }
+
+    public void endElement (String uri, String localName, String qName)
+        throws SAXException {
+        String value = content.toString();
+	if (qName.equals("study") && !study.interventions.isEmpty()) {
+            try {
+                handler.study(study);
+                ++parsed;
+            }
+            catch (InterruptedException ex) {
+                throw new SAXException (ex);
+            }
+	}
+        else if (qName.equals("nct_id")) {
+            study.id = value;
+        }
+	else if (qName.equals("title")) {
+	    study.title = value;
+	}
+	else if (qName.equals("condition")) {
+	    study.conditions.add(value);
+	}
+	else if (qName.equals("intervention")) {
+	    if (//isDrug &&
+                //!value.equalsIgnoreCase("placebo") &&
+                study.interventions.indexOf(value) < 0) {
+		study.interventions.add(value);
+	    }
+	}
+	else if (qName.equals("sponsor")) {
+	    study.sponsors.add(value);
+	}
+	else if (qName.equals("phase")) {
+	    study.phases.add(value);
+	}
+	else if (qName.equals("first_received")) {
+	    study.recieved = value;
+	}
+	else if (qName.equals("start_date")) {
+	    study.start = value;
+	}
+	else if (qName.equals("completion_date")) {
+	    study.completion = value;
+	}
+	else if (qName.equals("last_updated")) {
+	    study.updated = value;
+	}
+	else if (qName.equals("last_verified")) {
+	    study.verified = value;
+	}
+	else if (qName.equals("url")) {
+	    study.url = value;
+	}
+	//System.out.println("end " + qName);
+    }
+
+    public void characters (char[] ch, int start, int length) {
+	content.append(ch, start, length);
+    }
+}
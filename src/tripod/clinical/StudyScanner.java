@@ -0,0 +1,328 @@
+package tripod.clinical;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import tripod.clinical.ClinicalCrawler.Study;
+
+/**
+ * Scanner for the fixed ClinicalTrials.gov result schema that works on
+ * the UTF-8 bytes of a (chunk of a) trials document directly. Tags are
+ * told apart by walking a trie over their names, so no String is made
+ * for a tag, and text is only decoded for the Study fields asked for;
+ * e.g., matching only needs ID | TITLE | INTERVENTION (MATCH). The
+ * values are those StudyParser would give. scan() gives up on anything
+ * this doesn't expect (comments, CDATA, markup inside a field, other
+ * than the predefined entities, malformed UTF-8, ...), in which case
+ * the bytes are to be parsed by StudyParser instead.
+ */
+class StudyScanner {
+    // tags; all but STUDY are also fields with a bit of 1 << tag
+    static final String[] TAGS = {
+        "study", "nct_id", "title", "condition", "intervention", "sponsor",
+        "phase", "first_received", "start_date", "completion_date",
+        "last_updated", "last_verified", "url"
+    };
+    static final int STUDY = 0;
+    static final int ID = 1 << 1;
+    static final int TITLE = 1 << 2;
+    static final int CONDITION = 1 << 3;
+    static final int INTERVENTION = 1 << 4;
+    static final int SPONSOR = 1 << 5;
+    static final int PHASE = 1 << 6;
+    static final int RECEIVED = 1 << 7;
+    static final int START = 1 << 8;
+    static final int COMPLETION = 1 << 9;
+    static final int UPDATED = 1 << 10;
+    static final int VERIFIED = 1 << 11;
+    static final int URL = 1 << 12;
+    static final int ALL = (1 << TAGS.length) - 2;
+    static final int MATCH = ID | TITLE | INTERVENTION;
+
+    /*
+     * trie over the ASCII tag names; state s goes to next[s<<7|ch] (0
+     * for no such tag) and tag[s] is the tag that ends at s, or -1
+     */
+    static final short[] next;
+    static final byte[] tag;
+    static {
+        int states = 1;
+        for (String t : TAGS)
+            states += t.length();
+        short[] trie = new short[states << 7];
+        byte[] tags = new byte[states];
+        java.util.Arrays.fill(tags, (byte)-1);
+        int size = 1;
+        for (int t = 0; t < TAGS.length; ++t) {
+            int s = 0;
+            for (int i = 0; i < TAGS[t].length(); ++i) {
+                int k = s << 7 | TAGS[t].charAt(i);
+                if (trie[k] == 0)
+                    trie[k] = (short)size++;
+                s = trie[k];
+            }
+            tags[s] = (byte)t;
+        }
+        next = trie;
+        tag = tags;
+    }
+
+    final int fields;
+    char[] text = new char[256];
+
+    StudyScanner (int fields) {
+        // the interventions decide whether there's a study at all
+        this.fields = fields | INTERVENTION;
+    }
+
+    /**
+     * Scan the studies in buf (position to limit) into studies, in
+     * document order and, like StudyParser, only those with at least
+     * one intervention. Returns false, with studies left as they are,
+     * if the bytes aren't as expected.
+     */
+    public boolean scan (ByteBuffer buf, List<Study> studies) {
+        int i = buf.position(), end = buf.limit(), size = studies.size();
+        Study study = null;
+        int mark = -1; // start of the text of the innermost element
+
+        boolean ok = false;
+        for (int lt; ; ) {
+            lt = indexOf (buf, (byte)'<', i, end);
+            if (lt < 0) {
+                ok = study == null;
+                break;
+            }
+            if (lt + 1 == end)
+                break;
+
+            byte b = buf.get(lt+1);
+            if (b == '?' || b == '!') {
+                if (study != null)
+                    break;
+                i = skip (buf, lt, end);
+                if (i < 0)
+                    break;
+                continue;
+            }
+
+            boolean close = b == '/';
+            int j = close ? lt + 2 : lt + 1, s = 0;
+            for (; j < end; ++j) {
+                int ch = buf.get(j);
+                if (ch == '>' || ch == '/' || (ch >= 0 && ch <= ' '))
+                    break;
+                s = s >= 0 && ch > 0 ? next[s << 7 | ch] : -1;
+                if (s == 0)
+                    s = -1;
+            }
+            int t = s > 0 ? tag[s] : -1;
+
+            // end of the tag, past any attributes
+            int gt = j;
+            for (byte quote = 0; gt < end; ++gt) {
+                byte ch = buf.get(gt);
+                if (quote != 0) {
+                    if (ch == quote)
+                        quote = 0;
+                }
+                else if (ch == '"' || ch == '\'')
+                    quote = ch;
+                else if (ch == '>')
+                    break;
+            }
+            if (gt == end)
+                break;
+            boolean empty = !close && buf.get(gt-1) == '/';
+
+            if (t == STUDY) {
+                if (close) {
+                    if (study == null)
+                        break;
+                    if (!study.interventions.isEmpty())
+                        studies.add(study);
+                    study = null;
+                }
+                else if (study != null)
+                    break;
+                else if (!empty)
+                    study = new Study ();
+            }
+            else if (t > 0 && study != null && (fields & 1 << t) != 0
+                     && (close || empty)) {
+                String value = "";
+                if (close) {
+                    if (mark < 0)
+                        break; // markup inside a field
+                    value = text (buf, mark, lt);
+                    if (value == null)
+                        break;
+                }
+                set (study, t, value);
+            }
+
+            mark = close || empty ? -1 : gt + 1;
+            i = gt + 1;
+        }
+
+        if (!ok) {
+            while (studies.size() > size)
+                studies.remove(studies.size() - 1);
+            return false;
+        }
+        return true;
+    }
+
+    static void set (Study study, int t, String value) {
+        switch (1 << t) {
+        case ID: study.id = value; break;
+        case TITLE: study.title = value; break;
+        case CONDITION: study.conditions.add(value); break;
+        case INTERVENTION:
+            if (study.interventions.indexOf(value) < 0)
+                study.interventions.add(value);
+            break;
+        case SPONSOR: study.sponsors.add(value); break;
+        case PHASE: study.phases.add(value); break;
+        case RECEIVED: study.recieved = value; break;
+        case START: study.start = value; break;
+        case COMPLETION: study.completion = value; break;
+        case UPDATED: study.updated = value; break;
+        case VERIFIED: study.verified = value; break;
+        case URL: study.url = value; break;
+        }
+    }
+
+    static int indexOf (ByteBuffer buf, byte b, int from, int to) {
+        for (int i = from; i < to; ++i)
+            if (buf.get(i) == b)
+                return i;
+        return -1;
+    }
+
+    /*
+     * past the comment, processing instruction or declaration at lt;
+     * -1 if it doesn't end
+     */
+    static int skip (ByteBuffer buf, int lt, int end) {
+        byte[] until = { '>' };
+        if (lt + 3 < end && buf.get(lt+1) == '!'
+            && buf.get(lt+2) == '-' && buf.get(lt+3) == '-')
+            until = new byte[]{ '-', '-', '>' };
+        else if (buf.get(lt+1) == '?')
+            until = new byte[]{ '?', '>' };
+        else if (lt + 2 < end && buf.get(lt+2) == '[')
+            return -1; // CDATA
+        for (int i = lt + 2; i + until.length <= end; ++i) {
+            int k = 0;
+            while (k < until.length && buf.get(i+k) == until[k])
+                ++k;
+            if (k == until.length)
+                return i + k;
+        }
+        return -1;
+    }
+
+    /*
+     * the text in buf[from,to) as a SAX parser reports it, with the
+     * predefined and character references replaced and line ends made
+     * \n; null if there's something else there
+     */
+    String text (ByteBuffer buf, int from, int to) {
+        if (text.length < to - from)
+            text = new char[Math.max(to - from, 2*text.length)];
+        char[] text = this.text;
+        int n = 0;
+        for (int i = from; i < to; ) {
+            int b = buf.get(i++);
+            if (b >= 0) {
+                if (b == '&') {
+                    int semi = indexOf (buf, (byte)';', i, Math.min(to, i + 10));
+                    if (semi < 0)
+                        return null;
+                    int cp = entity (buf, i, semi);
+                    if (cp < 0)
+                        return null;
+                    if (cp >= 0x10000) {
+                        text[n++] = (char)(0xd7c0 + (cp >> 10));
+                        text[n++] = (char)(0xdc00 | cp & 0x3ff);
+                    }
+                    else
+                        text[n++] = (char)cp;
+                    i = semi + 1;
+                }
+                else if (b == '\r') {
+                    text[n++] = '\n';
+                    if (i < to && buf.get(i) == '\n')
+                        ++i;
+                }
+                else if (b == '<')
+                    return null;
+                else
+                    text[n++] = (char)b;
+                continue;
+            }
+
+            // UTF-8 sequence
+            int more, cp, min;
+            if ((b & 0xe0) == 0xc0) { more = 1; cp = b & 0x1f; min = 0x80; }
+            else if ((b & 0xf0) == 0xe0) { more = 2; cp = b & 0x0f; min = 0x800; }
+            else if ((b & 0xf8) == 0xf0) { more = 3; cp = b & 0x07; min = 0x10000; }
+            else
+                return null;
+            if (i + more > to)
+                return null;
+            for (; more > 0; --more) {
+                int c = buf.get(i++);
+                if ((c & 0xc0) != 0x80)
+                    return null;
+                cp = cp << 6 | c & 0x3f;
+            }
+            if (cp < min || cp > 0x10ffff || (cp >= 0xd800 && cp < 0xe000))
+                return null; // overlong, too big or a surrogate
+            if (cp >= 0x10000) {
+                text[n++] = (char)(0xd7c0 + (cp >> 10));
+                text[n++] = (char)(0xdc00 | cp & 0x3ff);
+            }
+            else
+                text[n++] = (char)cp;
+        }
+        return new String (text, 0, n);
+    }
+
+    // the code point of the reference in buf[from,to); -1 if unknown
+    static int entity (ByteBuffer buf, int from, int to) {
+        int len = to - from;
+        if (len >= 2 && buf.get(from) == '#') {
+            int radix = 10, i = from + 1, cp = 0;
+            if (buf.get(i) == 'x') {
+                radix = 16;
+                ++i;
+            }
+            if (i == to)
+                return -1;
+            for (; i < to; ++i) {
+                int d = Character.digit((char)buf.get(i), radix);
+                if (d < 0)
+                    return -1;
+                cp = cp * radix + d;
+            }
+            return cp <= 0x10ffff ? cp : -1;
+        }
+        if (is (buf, from, len, "lt")) return '<';
+        if (is (buf, from, len, "gt")) return '>';
+        if (is (buf, from, len, "amp")) return '&';
+        if (is (buf, from, len, "quot")) return '"';
+        if (is (buf, from, len, "apos")) return '\'';
+        return -1;
+    }
+
+    static boolean is (ByteBuffer buf, int from, int len, String name) {
+        if (len != name.length())
+            return false;
+        for (int k = 0; k < len; ++k)
+            if (buf.get(from+k) != name.charAt(k))
+                return false;
+        return true;
+    }
+}
@@ -0,0 +1,399 @@
+package tripod.clinical;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import tripod.clinical.ClinicalCrawler.Study;
+import tripod.clinical.ClinicalCrawler.StudyHandler;
+
+/**
+ * Parses a single (large) clinical trials XML document on more than one
+ * core. The bytes are cut right after a </study> into chunks of about
+ * chunkSize bytes, and each chunk is parsed by a StudyParser of its own
+ * as a document of its own, i.e., with the prolog and root start tag of
+ * the whole document in front and the root end tag after. The studies
+ * are handed to the handler from the calling thread in document order,
+ * so the handler sees exactly what a single StudyParser would give it.
+ * A document that can't be cut this way (a DOCTYPE with an internal
+ * subset, or an encoding that isn't a superset of ASCII) is parsed by
+ * a single StudyParser instead. With fields set, the chunks of a UTF-8
+ * document go through a StudyScanner for just those fields first, and
+ * only a chunk it gives up on through a StudyParser.
+ */
+class StudySplitter {
+    static final byte[] END = { '<','/','s','t','u','d','y','>' };
+    static final int CHUNK_SIZE = 1 << 20;
+
+    final int threads;
+    int chunkSize = CHUNK_SIZE;
+    int fields; // StudyScanner fields; 0 for StudyParser only
+
+    // set by prolog()
+    byte[] prolog; // everything up to and including the root start tag
+    byte[] close; // root end tag
+    boolean utf8; // or ASCII
+
+    StudySplitter (int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    public void setChunkSize (int chunkSize) { this.chunkSize = chunkSize; }
+    public int getChunkSize () { return chunkSize; }
+    public void setFields (int fields) { this.fields = fields; }
+    public int getFields () { return fields; }
+
+    /**
+     * Parse the document in file, mapped into memory
+     */
+    public int parse (File file, StudyHandler handler) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile (file, "r");
+        try {
+            FileChannel fc = raf.getChannel();
+            if (fc.size() > Integer.MAX_VALUE) // too big for one mapping
+                return parse (new BufferedInputStream
+                              (new FileInputStream (file)), handler);
+
+            MappedByteBuffer buf =
+                fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            return parse (buf, handler);
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    public int parse (ByteBuffer buf, StudyHandler handler)
+        throws Exception {
+        buf = buf.duplicate();
+        byte[] head = new byte[Math.min(buf.remaining(), 1 << 16)];
+        buf.duplicate().get(head);
+        int start = prolog (head, head.length);
+        if (start < 0) {
+            StudyParser parser = new StudyParser (handler);
+            return parser.parse(new ByteBufferInputStream (buf));
+        }
+
+        Chunks chunks = new Chunks (handler);
+        try {
+            int pos = buf.position() + start, end = buf.limit();
+            while (pos < end) {
+                ByteBuffer chunk = buf.duplicate();
+                chunk.position(pos);
+                int limit = Math.min(end, pos + chunkSize), cut = -1;
+                if (limit < end) {
+                    cut = lastEnd (buf, pos, limit);
+                    if (cut < 0) // a study longer than a chunk
+                        cut = firstEnd (buf, Math.max(pos, limit - END.length),
+                                        end);
+                }
+
+                if (cut < 0) { // whatever's left, root end tag and all
+                    chunks.submit(chunk, true);
+                    pos = end;
+                }
+                else {
+                    chunk.limit(cut);
+                    chunks.submit(chunk, false);
+                    pos = cut;
+                }
+            }
+            return chunks.finish();
+        }
+        finally {
+            chunks.shutdown();
+        }
+    }
+
+    /**
+     * Parse the document in the stream; the chunks are copied off a
+     * read buffer as they fill up
+     */
+    public int parse (InputStream is, StudyHandler handler)
+        throws Exception {
+        byte[] buf = new byte[Math.max(chunkSize, 1 << 16)];
+        int len = read (is, buf, 0);
+        int start = prolog (buf, len);
+        if (start < 0) {
+            StudyParser parser = new StudyParser (handler);
+            return parser.parse(new SequenceInputStream
+                                (new ByteArrayInputStream (buf, 0, len), is));
+        }
+
+        Chunks chunks = new Chunks (handler);
+        try {
+            System.arraycopy(buf, start, buf, 0, len - start);
+            len -= start;
+            int scanned = 0; // no </study> before this
+            for (boolean eof = false; !eof; ) {
+                len = read (is, buf, len);
+                eof = len < buf.length;
+
+                int cut = lastEnd (ByteBuffer.wrap(buf), scanned, len);
+                if (cut < 0 && !eof) {
+                    // a study longer than the buffer
+                    scanned = Math.max(0, len - END.length);
+                    byte[] grow = new byte[2*buf.length];
+                    System.arraycopy(buf, 0, grow, 0, len);
+                    buf = grow;
+                    continue;
+                }
+
+                if (eof) { // whatever's left, root end tag and all
+                    byte[] chunk = new byte[len];
+                    System.arraycopy(buf, 0, chunk, 0, len);
+                    chunks.submit(ByteBuffer.wrap(chunk), true);
+                }
+                else {
+                    byte[] chunk = new byte[cut];
+                    System.arraycopy(buf, 0, chunk, 0, cut);
+                    chunks.submit(ByteBuffer.wrap(chunk), false);
+                    System.arraycopy(buf, cut, buf, 0, len - cut);
+                    len -= cut;
+                    scanned = 0;
+                }
+            }
+            return chunks.finish();
+        }
+        finally {
+            chunks.shutdown();
+        }
+    }
+
+    static int read (InputStream is, byte[] buf, int len) throws IOException {
+        for (int nb; len < buf.length
+                 && (nb = is.read(buf, len, buf.length - len)) > 0; )
+            len += nb;
+        return len;
+    }
+
+    static boolean isEnd (ByteBuffer buf, int at) {
+        int k = 0;
+        while (k < END.length && buf.get(at+k) == END[k])
+            ++k;
+        return k == END.length;
+    }
+
+    /*
+     * end of the first </study> in buf[from,to); -1 if there's none
+     */
+    static int firstEnd (ByteBuffer buf, int from, int to) {
+        for (int i = from; i + END.length <= to; ++i)
+            if (isEnd (buf, i))
+                return i + END.length;
+        return -1;
+    }
+
+    /*
+     * end of the last </study> in buf[from,to); -1 if there's none
+     */
+    static int lastEnd (ByteBuffer buf, int from, int to) {
+        for (int i = to - END.length; i >= from; --i)
+            if (isEnd (buf, i))
+                return i + END.length;
+        return -1;
+    }
+
+    /*
+     * Set prolog and close from the first len bytes of the document
+     * and return where the content of the root element starts; -1 if
+     * the document can't be split
+     */
+    int prolog (byte[] doc, int len) {
+        if (len < 2 || doc[0] == 0 || doc[1] == 0
+            || (doc[0] & 0xff) == 0xfe || (doc[0] & 0xff) == 0xff)
+            return -1; // UTF-16 or 32
+
+        for (int i = 0; i < len; ++i) {
+            if (doc[i] != '<')
+                continue;
+            if (i + 1 == len)
+                return -1;
+
+            byte next = doc[i+1];
+            if (i == 0 && startsWith (doc, len, i, "<?xml")) {
+                int j = indexOf (doc, len, i, "?>");
+                if (j < 0)
+                    return -1;
+                String decl = new String (doc, i, j - i);
+                int k = decl.indexOf("encoding");
+                utf8 = k < 0 || decl.substring(k).matches
+                    ("(?is)encoding\\s*=\\s*[\"'](utf-8|us-ascii|ascii)[\"'].*");
+            }
+            else if (i == 0 || (i == 3 && (doc[0] & 0xff) == 0xef))
+                utf8 = true; // no declaration, maybe a byte order mark
+
+            if (next == '?' || next == '!') {
+                if (startsWith (doc, len, i, "<!DOCTYPE")) {
+                    for (int j = i; j < len && doc[j] != '>'; ++j)
+                        if (doc[j] == '[')
+                            return -1; // internal subset
+                }
+                String end = startsWith (doc, len, i, "<!--") ? "-->"
+                    : startsWith (doc, len, i, "<![CDATA[") ? "]]>" : ">";
+                int j = indexOf (doc, len, i + 2, end);
+                if (j < 0)
+                    return -1;
+                i = j + end.length() - 1;
+                continue;
+            }
+
+            // root start tag
+            int j = i + 1;
+            while (j < len && doc[j] != '>' && doc[j] != '/'
+                   && doc[j] > ' ')
+                ++j;
+            String root = new String (doc, i + 1, j - i - 1);
+            j = indexOf (doc, len, j, ">");
+            if (j < 0 || doc[j-1] == '/')
+                return -1; // too long or empty
+            ++j;
+
+            prolog = new byte[j];
+            System.arraycopy(doc, 0, prolog, 0, j);
+            close = ("</"+root+">").getBytes();
+            return j;
+        }
+        return -1;
+    }
+
+    static boolean startsWith (byte[] doc, int len, int at, String s) {
+        if (at + s.length() > len)
+            return false;
+        for (int k = 0; k < s.length(); ++k)
+            if (doc[at+k] != s.charAt(k))
+                return false;
+        return true;
+    }
+
+    static int indexOf (byte[] doc, int len, int from, String s) {
+        for (int i = from; i < len; ++i)
+            if (startsWith (doc, len, i, s))
+                return i;
+        return -1;
+    }
+
+    /*
+     * chunks being parsed, in document order; no more than two per
+     * thread are ever kept around
+     */
+    /*
+     * the studies in the chunk, which ends with the root end tag if
+     * it's the last one
+     */
+    List<Study> parse (ByteBuffer chunk, boolean last) throws Exception {
+        final List<Study> studies = new ArrayList<Study>();
+        if (fields != 0 && utf8 && new StudyScanner (fields).scan
+            (chunk.duplicate(), studies))
+            return studies;
+
+        StudyParser parser = new StudyParser (new StudyHandler () {
+                public void study (Study s) {
+                    studies.add(s);
+                }
+            });
+        parser.summary = false;
+
+        List<InputStream> doc = new ArrayList<InputStream>();
+        doc.add(new ByteArrayInputStream (prolog));
+        doc.add(new ByteBufferInputStream (chunk));
+        if (!last)
+            doc.add(new ByteArrayInputStream (close));
+        parser.parse(new SequenceInputStream (Collections.enumeration(doc)));
+        return studies;
+    }
+
+    /*
+     * chunks being parsed, in document order; no more than two per
+     * thread are ever kept around, and with one thread there's no pool
+     * and each chunk is parsed as it's submitted
+     */
+    class Chunks {
+        final StudyHandler handler;
+        final ExecutorService parsers = threads > 1 
+            ? Executors.newFixedThreadPool(threads) : null;
+        final LinkedList<Future<List<Study>>> pending =
+            new LinkedList<Future<List<Study>>>();
+        int parsed;
+
+        Chunks (StudyHandler handler) {
+            this.handler = handler;
+        }
+
+        void submit (final ByteBuffer chunk, final boolean last)
+            throws Exception {
+            if (parsers == null) {
+                handle (parse (chunk, last));
+                return;
+            }
+
+            while (pending.size() >= 2*threads)
+                next ();
+
+            pending.add(parsers.submit(new Callable<List<Study>>() {
+                    public List<Study> call () throws Exception {
+                        return parse (chunk, last);
+                    }
+                }));
+        }
+
+        void next () throws Exception {
+            try {
+                handle (pending.removeFirst().get());
+            }
+            catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                throw cause instanceof Exception ? (Exception)cause : ex;
+            }
+        }
+
+        void handle (List<Study> studies) throws Exception {
+            for (Study s : studies) {
+                handler.study(s);
+                ++parsed;
+            }
+        }
+
+        int finish () throws Exception {
+            while (!pending.isEmpty())
+                next ();
+            System.err.println(parsed + " studies with drugs!");
+            return parsed;
+        }
+
+        void shutdown () {
+            if (parsers != null)
+                parsers.shutdownNow();
+        }
+    }
+
+    static class ByteBufferInputStream extends InputStream {
+        final ByteBuffer buf;
+
+        ByteBufferInputStream (ByteBuffer buf) {
+            this.buf = buf.duplicate();
+        }
+
+        public int read () {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        public int read (byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (!buf.hasRemaining())
+                return -1;
+            len = Math.min(len, buf.remaining());
+            buf.get(b, off, len);
+            return len;
+        }
+
+        public int available () { return buf.remaining(); }
+    }
+}
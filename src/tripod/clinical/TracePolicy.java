@@ -0,0 +1,176 @@
+package tripod.clinical;
+
+import java.io.*;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Which alignments go to the alignment (trace) output. By default all
+ * of them do; otherwise only those of the given studies (NCT ids) or
+ * dictionary classes, with a similarity within the given band, and of
+ * those only about rate of them. The sample is a hash of the study and
+ * class, so the same ones are picked from one run to the next. ALL and
+ * OFF are shared and can't be changed.
+ */
+public class TracePolicy {
+    public static final TracePolicy ALL = new Fixed (1.);
+    public static final TracePolicy OFF = new Fixed (0.);
+
+    // a shared policy; changing it throws UnsupportedOperationException
+    static class Fixed extends TracePolicy {
+        Fixed (double rate) {
+            this.rate = rate;
+        }
+
+        public void addStudy (String id) { throw fixed (); }
+        public Set<String> getStudies () {
+            return Collections.unmodifiableSet(studies);
+        }
+        public void addClass (String id) { throw fixed (); }
+        public Set<String> getClasses () {
+            return Collections.unmodifiableSet(classes);
+        }
+        public void setBand (double min, double max) { throw fixed (); }
+        public void setRate (double rate) { throw fixed (); }
+
+        static UnsupportedOperationException fixed () {
+            return new UnsupportedOperationException
+                ("Shared trace policy can't be changed; make a new one");
+        }
+    }
+
+    protected final Set<String> studies = new HashSet<String>();
+    protected final Set<String> classes = new HashSet<String>();
+    protected double minSimilarity = Double.NEGATIVE_INFINITY;
+    protected double maxSimilarity = Double.POSITIVE_INFINITY;
+    protected double rate = 1.;
+
+    public TracePolicy () {
+    }
+
+    /**
+     * Only the alignments of these studies (or of the classes, if any,
+     * given to addClass) are traced
+     */
+    public void addStudy (String id) { studies.add(id); }
+    public Set<String> getStudies () { return studies; }
+    public void addClass (String id) { classes.add(id); }
+    public Set<String> getClasses () { return classes; }
+
+    /**
+     * Only alignments with a similarity in [min, max] are traced, e.g.,
+     * those close to the acceptance threshold
+     */
+    public void setBand (double min, double max) {
+        minSimilarity = min;
+        maxSimilarity = max;
+    }
+    public double getMinSimilarity () { return minSimilarity; }
+    public double getMaxSimilarity () { return maxSimilarity; }
+
+    /**
+     * Fraction of the alignments otherwise traced that are; 0 for none
+     */
+    public void setRate (double rate) { this.rate = rate; }
+    public double getRate () { return rate; }
+
+    public boolean isOff () { return rate <= 0.; }
+
+    /**
+     * Whether the alignment of a term of study with the dictionary
+     * class clazz is traced
+     */
+    public boolean trace (String study, String clazz, double similarity) {
+        if (rate <= 0.)
+            return false;
+        if ((!studies.isEmpty() || !classes.isEmpty())
+            && !studies.contains(study) && !classes.contains(clazz))
+            return false;
+        if (similarity < minSimilarity || similarity > maxSimilarity)
+            return false;
+        return rate >= 1. || sample (study, clazz) < rate;
+    }
+
+    // a fixed value in [0, 1) for the pair
+    static double sample (String study, String clazz) {
+        long h = AlignmentStore.fingerprint
+            (AlignmentStore.fingerprint(0xcbf29ce484222325l, study), clazz);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdl;
+        h ^= h >>> 33;
+        return (h >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * The policy given by spec, which is "all", "off" or comma separated
+     * settings of
+     * <pre>
+     *   ids=NCT ids, or @file with them, separated by space
+     *   classes=dictionary classes (likewise)
+     *   band=min:max
+     *   rate=fraction
+     * </pre>
+     * e.g., "band=.85:.95,rate=.01"
+     */
+    public static TracePolicy parse (String spec) throws IOException {
+        spec = spec.trim();
+        if (spec.equalsIgnoreCase("all"))
+            return ALL;
+        if (spec.equalsIgnoreCase("off"))
+            return OFF;
+
+        TracePolicy policy = new TracePolicy ();
+        for (String setting : spec.split(",")) {
+            int eq = setting.indexOf('=');
+            if (eq < 0)
+                throw new IllegalArgumentException
+                    ("Bogus trace setting: "+setting);
+            String name = setting.substring(0, eq).trim();
+            String value = setting.substring(eq+1).trim();
+            if (name.equals("ids")) {
+                for (String id : values (value))
+                    policy.addStudy(id);
+            }
+            else if (name.equals("classes")) {
+                for (String id : values (value))
+                    policy.addClass(id);
+            }
+            else if (name.equals("band")) {
+                String[] band = value.split(":");
+                if (band.length != 2)
+                    throw new IllegalArgumentException
+                        ("Bogus trace band: "+value);
+                policy.setBand(Double.parseDouble(band[0]),
+                               Double.parseDouble(band[1]));
+            }
+            else if (name.equals("rate")) {
+                policy.setRate(Double.parseDouble(value));
+            }
+            else {
+                throw new IllegalArgumentException
+                    ("Unknown trace setting: "+name);
+            }
+        }
+        return policy;
+    }
+
+    // the space separated values, or those in the file after @
+    static String[] values (String value) throws IOException {
+        if (value.startsWith("@")) {
+            StringBuilder sb = new StringBuilder ();
+            BufferedReader br = new BufferedReader
+                (new FileReader (value.substring(1)));
+            try {
+                for (String line; (line = br.readLine()) != null; )
+                    sb.append(line).append(' ');
+            }
+            finally {
+                br.close();
+            }
+            value = sb.toString();
+        }
+        value = value.trim();
+        return value.length() > 0 ? value.split("\\s+") : new String[0];
+    }
+}
@@ -0,0 +1,26 @@
+package tripod.clinical;
+
+/**
+ * What the checks under test share: a failed check is reported and
+ * counted, and done() exits with 1 if any failed, which fails the ant
+ * check target
+ */
+class Check {
+    static int failed;
+
+    static void check (boolean ok, String what) {
+        if (!ok) {
+            System.err.println("** FAILED: "+what);
+            ++failed;
+        }
+    }
+
+    static void done (String name) {
+        if (failed > 0) {
+            System.err.println(name+": "+failed+" check(s) failed");
+            System.exit(1);
+        }
+        System.out.println(name+": all checks passed");
+        System.exit(0);
+    }
+}
@@ -0,0 +1,137 @@
+package tripod.clinical;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import tripod.clinical.ClinicalCrawler.AlignmentRef;
+import tripod.clinical.ClinicalCrawler.Study;
+
+import static tripod.clinical.Check.check;
+
+/**
+ * Streams a zip of trials off a local HTTP server through crawl(): the
+ * archive tee'd off the download has to be the zip served, and the
+ * studies parsed the ones in it
+ */
+public class CrawlStreamTest {
+    static byte[] served;
+
+    public static void main (String[] argv) throws Exception {
+        served = Fixtures.zip(Fixtures.studies(0, 300),
+                              Fixtures.studies(300, 200));
+        List<String> expected = Fixtures.ids(0, 500);
+
+        HttpServer server = HttpServer.create
+            (new InetSocketAddress ("127.0.0.1", 0), 0);
+        server.createContext("/trials.zip", new HttpHandler () {
+                public void handle (HttpExchange ex) throws IOException {
+                    ex.getResponseHeaders().set
+                        ("Content-Type", "application/zip");
+                    ex.sendResponseHeaders(200, served.length);
+                    OutputStream os = ex.getResponseBody();
+                    // in pieces, as a download would come in
+                    for (int i = 0; i < served.length; i += 1000)
+                        os.write(served, i, Math.min(1000, served.length-i));
+                    os.close();
+                }
+            });
+        server.start();
+        String url = "http://127.0.0.1:"+server.getAddress().getPort()
+            +"/trials.zip";
+
+        try {
+            // SAX, then the scanner with two parse threads
+            crawl (url, 0, 1, expected);
+            crawl (url, StudyScanner.MATCH, 2, expected);
+            download (url);
+        }
+        catch (Exception ex) {
+            // the crawler threads would otherwise keep the vm up
+            ex.printStackTrace();
+            check (false, "crawl threw "+ex);
+        }
+        finally {
+            server.stop(0);
+        }
+        Check.done("CrawlStreamTest");
+    }
+
+    static ClinicalCrawler crawler (String url) throws IOException {
+        ClinicalCrawler crawler = new ClinicalCrawler (2);
+        crawler.loadDict(new ByteArrayInputStream
+                         ("aspirin\tC1\ndrug 1\tC2\n".getBytes("UTF-8")));
+        crawler.loadModifiers();
+        crawler.setMatchStream(null);
+        crawler.setDownloadUrl(url);
+        return crawler;
+    }
+
+    static void crawl (String url, int fields, int parsers,
+                       List<String> expected) throws Exception {
+        String mode = "fields="+fields+", parsers="+parsers;
+        ClinicalCrawler crawler = crawler (url);
+        crawler.setScanFields(fields);
+        crawler.setParseThreads(parsers);
+        final List<String> ids = 
+            Collections.synchronizedList(new ArrayList<String>());
+        crawler.addMatchListener(new MatchListener () {
+                public void matched (Study s, Set<AlignmentRef> matches) {
+                    ids.add(s.id);
+                }
+            });
+
+        File archive = File.createTempFile("trials", ".zip");
+        try {
+            crawler.crawl(archive);
+            crawler.shutdown();
+
+            check (Arrays.equals(served, read (archive)),
+                   mode+": archive is the zip served");
+            List<String> parsed = new ArrayList<String>(ids);
+            Collections.sort(parsed);
+            check (parsed.size() == expected.size(),
+                   mode+": "+parsed.size()+" studies parsed, "
+                   +expected.size()+" expected");
+            check (parsed.equals(expected), mode+": the ids parsed");
+        }
+        finally {
+            archive.delete();
+        }
+    }
+
+    static void download (String url) throws Exception {
+        ClinicalCrawler crawler = crawler (url);
+        File file = crawler.download();
+        try {
+            check (Arrays.equals(served, read (file)),
+                   "download() is the zip served");
+        }
+        finally {
+            file.delete();
+            crawler.shutdown();
+        }
+    }
+
+    static byte[] read (File file) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream ();
+        InputStream is = new FileInputStream (file);
+        try {
+            byte[] buf = new byte[8192];
+            for (int nb; (nb = is.read(buf)) > 0; )
+                bos.write(buf, 0, nb);
+        }
+        finally {
+            is.close();
+        }
+        return bos.toByteArray();
+    }
+}
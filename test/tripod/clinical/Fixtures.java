@@ -0,0 +1,130 @@
+package tripod.clinical;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generated trials XML and zips for the checks
+ */
+class Fixtures {
+    static final String HEAD = 
+        "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n";
+
+    /*
+     * studies NCT ids first to first+count-1; every seventh has no
+     * interventions, so it isn't handed on by the parsers
+     */
+    static String studies (int first, int count) {
+        StringBuilder sb = new StringBuilder (HEAD);
+        sb.append("<search_results count=\"").append(count).append("\">\n");
+        for (int i = first; i < first + count; ++i) {
+            sb.append("<study rank=\"").append(i).append("\">\n")
+                .append("  <nct_id>").append(id (i)).append("</nct_id>\n")
+                .append("  <url>http://x/").append(i).append("</url>\n")
+                .append("  <title>Study ").append(i)
+                .append(" of aspirin</title>\n")
+                .append("  <conditions><condition>Cond ").append(i)
+                .append("</condition></conditions>\n");
+            if (i % 7 != 0) {
+                sb.append("  <interventions>\n")
+                    .append("    <intervention type=\"Drug\">drug ")
+                    .append(i % 5).append("</intervention>\n")
+                    .append("    <intervention type=\"Other\">placebo")
+                    .append("</intervention>\n")
+                    .append("  </interventions>\n");
+            }
+            sb.append("  <last_updated>May 2012</last_updated>\n")
+                .append("</study>\n");
+        }
+        return sb.append("</search_results>\n").toString();
+    }
+
+    /*
+     * studies with what the parsers have to agree on: predefined and
+     * character references, multi-byte UTF-8, CR LF line ends,
+     * attributes on the fields, empty and repeated fields, an empty
+     * element, and every seventh study without interventions; with
+     * cdata, every eleventh has a CDATA title, which StudyScanner
+     * leaves to StudyParser. Every thirteenth has a title of about
+     * longTitle chars.
+     */
+    static String tricky (int first, int count, boolean cdata,
+                          int longTitle) {
+        StringBuilder sb = new StringBuilder (HEAD);
+        sb.append("<!-- ").append(count).append(" studies -->\n")
+            .append("<search_results count=\"").append(count).append("\">\n");
+        for (int i = first; i < first + count; ++i) {
+            sb.append("<study rank=\"").append(i).append("\" note='a>b'>\r\n")
+                .append("  <nct_id>").append(id (i)).append("</nct_id>\r\n");
+            if (cdata && i % 11 == 5)
+                sb.append("  <title><![CDATA[Study ").append(i)
+                    .append(" of <aspirin> & co]]></title>\n");
+            else if (i % 13 == 6) {
+                sb.append("  <title>");
+                for (int k = 0; k < longTitle; k += 10)
+                    sb.append("caf\u00e9 \u6f22\u5b57 ");
+                sb.append("</title>\n");
+            }
+            else
+                sb.append("  <title lang=\"en\">Study ").append(i)
+                    .append(" of aspirin &amp; caf\u00e9 &lt;\ud83d\ude00&gt;")
+                    .append(" &#233;&#x1F600; &quot;q&apos;</title>\n");
+            sb.append("  <conditions><condition>line 1\r\nline 2")
+                .append("</condition><condition/></conditions>\n");
+            if (i % 7 != 0) {
+                sb.append("  <interventions>\n")
+                    .append("    <intervention type=\"Drug\" note=\"x\">")
+                    .append("drug ").append(i % 5)
+                    .append(" \u03b2-blocker</intervention>\n")
+                    .append("    <intervention type=\"Other\">placebo")
+                    .append("</intervention>\n")
+                    .append("    <intervention type='Drug'>drug ")
+                    .append(i % 5).append(" \u03b2-blocker</intervention>\n")
+                    .append("  </interventions>\n");
+            }
+            sb.append("  <sponsors><sponsor>Caf\u00e9 &amp; Co</sponsor>")
+                .append("<sponsor>NIH</sponsor></sponsors>\n")
+                .append("  <phase>Phase ").append(i % 4).append("</phase>\n")
+                .append("  <first_received>Jan 2010</first_received>")
+                .append("<start_date></start_date>")
+                .append("<completion_date>Dec 2014</completion_date>\n")
+                .append("  <last_updated>May ").append(2000 + i % 13)
+                .append("</last_updated><last_verified>May 2012")
+                .append("</last_verified>\n")
+                .append("  <url>http://x/?a=").append(i)
+                .append("&amp;b=2</url>\n")
+                .append("</study>\n");
+        }
+        return sb.append("</search_results>\n").toString();
+    }
+
+    // the ids of studies() that have interventions
+    static List<String> ids (int first, int count) {
+        List<String> ids = new ArrayList<String>();
+        for (int i = first; i < first + count; ++i)
+            if (i % 7 != 0)
+                ids.add(id (i));
+        return ids;
+    }
+
+    static String id (int i) {
+        return String.format("NCT%08d", i);
+    }
+
+    // a zip with an entry for each document
+    static byte[] zip (String... docs) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream ();
+        ZipOutputStream zos = new ZipOutputStream (bos);
+        for (int k = 0; k < docs.length; ++k) {
+            zos.putNextEntry(new ZipEntry ("search_result"+k+".xml"));
+            zos.write(docs[k].getBytes("UTF-8"));
+            zos.closeEntry();
+        }
+        zos.close();
+        return bos.toByteArray();
+    }
+}
@@ -0,0 +1,89 @@
+package tripod.clinical;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import tripod.clinical.ResultWriter.Row;
+
+import static tripod.clinical.Check.check;
+
+/**
+ * Writes match tables in small blocks, so that the rows span several of
+ * them with a last one partly full, and reads them back
+ */
+public class MatchTableTest {
+
+    static void testRoundTrip (int count, int block) throws Exception {
+        Random rand = new Random (count);
+        List<String> ids = new ArrayList<String>();
+        List<Row> rows = new ArrayList<Row>();
+        for (int i = 0; i < count; ++i) {
+            ids.add(Fixtures.id(rand.nextInt(10)));
+            if (rand.nextInt(4) == 0)
+                rows.add(new Row ("term "+rand.nextInt(20)));
+            else // scores a float can't hold, at a thousandth's tie
+                rows.add(new Row ("term "+rand.nextInt(20),
+                                  "C"+rand.nextInt(5),
+                                  "ref \u00e9 "+rand.nextInt(20),
+                                  .5125, rand.nextDouble(), 1.));
+        }
+
+        String what = count+" rows in blocks of "+block;
+        File file = File.createTempFile("matches", ".bin");
+        try {
+            MatchTableWriter writer = new MatchTableWriter (file, block);
+            for (int i = 0; i < count; ++i)
+                writer.add(ids.get(i), rows.get(i));
+            writer.close();
+
+            MatchTable table = new MatchTable (file);
+            check (table.size() == count, what+": "+table.size()+" rows");
+            MatchTable.Cursor c = table.cursor();
+            for (int i = 0; i < count; ++i) {
+                if (!c.next()) {
+                    check (false, what+": no row "+i);
+                    return;
+                }
+                check (same (table, c, ids.get(i), rows.get(i)),
+                       what+": row "+i);
+            }
+            check (!c.next(), what+": no more rows");
+
+            // back and forth
+            for (int k = 0; k < 50 && count > 0; ++k) {
+                int i = rand.nextInt(count);
+                c.seek(i);
+                check (c.row() == i && same (table, c, ids.get(i),
+                                             rows.get(i)),
+                       what+": seek to row "+i);
+            }
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    static boolean same (MatchTable table, MatchTable.Cursor c,
+                         String id, Row r) {
+        if (!id.equals(table.getStudy(c.study()))
+            || !r.term.equals(table.getTerm(c.term())))
+            return false;
+        if (r.clazz == null)
+            return !c.matched() && c.ref() < 0
+                && Double.isNaN(c.similarity());
+        return c.matched() && r.clazz.equals(table.getClassId(c.classId()))
+            && r.ref.equals(table.getTerm(c.ref()))
+            && c.similarity() == r.similarity && c.global() == r.global
+            && c.local() == r.local;
+    }
+
+    public static void main (String[] argv) throws Exception {
+        int[][] cases = { { 0, 4 }, { 1, 4 }, { 4, 4 }, { 23, 4 },
+                          { 100, 7 }, { 1000, MatchTable.BLOCK } };
+        for (int[] c : cases)
+            testRoundTrip (c[0], c[1]);
+        Check.done("MatchTableTest");
+    }
+}
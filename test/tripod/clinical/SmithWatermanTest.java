@@ -0,0 +1,237 @@
+package tripod.clinical;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+
+import tripod.clinical.SmithWaterman.Alignment;
+import tripod.clinical.SmithWaterman.DefaultScore;
+
+import static tripod.clinical.Check.check;
+
+/**
+ * Regression checks for SmithWaterman
+ */
+public class SmithWatermanTest {
+    /*
+     * a merge with an alignment whose start was moved past trailing
+     * whitespace used to put a position past the end into the trace
+     */
+    static void testMergeAfterTrailingWhitespace () {
+        String[][] pairs = {
+            { "bb b bab  ", "b    a" },
+            { " b  a  bba  ", " bbaab a    " }
+        };
+        for (String[] p : pairs) {
+            String what = "align(\""+p[0]+"\", \""+p[1]+"\")";
+            try {
+                SmithWaterman sw = new SmithWaterman ();
+                int n = sw.align(p[0], p[1]);
+                check (n > 0, what+" has alignments");
+                for (Enumeration<Alignment> e = sw.alignments();
+                     e.hasMoreElements(); ) {
+                    Alignment aln = e.nextElement();
+                    for (int k = 0; k < aln.size(); ++k) {
+                        check (aln.index1(k) < p[0].length()
+                               && aln.index2(k) < p[1].length(),
+                               what+" stays within the strings");
+                    }
+                }
+            }
+            catch (RuntimeException ex) {
+                ex.printStackTrace();
+                check (false, what+" throws "+ex);
+            }
+        }
+    }
+
+    /*
+     * random strings over a small alphabet, so that there are plenty of
+     * matches and ties, with case folding, whitespace and a char past
+     * ASCII (off the query profile); a third of them empty or of one char
+     */
+    static final String ALPHABET = "aAbBc -\u00e9\u00c9";
+
+    static String random (Random rand, int max) {
+        int len = rand.nextInt(3) == 0 ? rand.nextInt(2) 
+            : rand.nextInt(max + 1);
+        char[] s = new char[len];
+        for (int i = 0; i < len; ++i)
+            s[i] = ALPHABET.charAt(rand.nextInt(ALPHABET.length()));
+        return new String (s);
+    }
+
+    /*
+     * the plain full matrix local score the others have to agree with;
+     * end gets the last cell (row by row) with the best score, or (n,m)
+     */
+    static int reference (String a, String b, int[] end) {
+        int n = a.length(), m = b.length();
+        int[][] h = new int[n+1][m+1];
+        int best = 0;
+        end[0] = n;
+        end[1] = m;
+        for (int i = 1; i <= n; ++i)
+            for (int j = 1; j <= m; ++j) {
+                int sub = SmithWaterman.fold(a.charAt(i-1))
+                    == SmithWaterman.fold(b.charAt(j-1)) 
+                    ? SmithWaterman.SCORE_MATCH 
+                    : SmithWaterman.SCORE_MISMATCH;
+                h[i][j] = Math.max
+                    (Math.max(h[i-1][j-1] + sub, 0),
+                     Math.max(h[i-1][j], h[i][j-1]) 
+                     + SmithWaterman.SCORE_MISMATCH);
+                if (h[i][j] > 0 && h[i][j] >= best) {
+                    best = h[i][j];
+                    end[0] = i;
+                    end[1] = j;
+                }
+            }
+        return best;
+    }
+
+    // the same alignments, through the Score interface instead
+    static SmithWaterman generic () {
+        return new SmithWaterman (new DefaultScore () {});
+    }
+
+    /*
+     * score() (plain, banded and through the Score interface) and the
+     * fill of align() against the reference, and align() off the query
+     * profile against align() through the Score interface
+     */
+    static void testScoreEquivalence (long seed) {
+        Random rand = new Random (seed);
+        SmithWaterman sw = new SmithWaterman (), gen = generic ();
+        SmithWaterman banded = new SmithWaterman ();
+        int[] end = new int[2];
+        for (int t = 0; t < 3000; ++t) {
+            String a = random (rand, 14), b = random (rand, 14);
+            String what = "seed "+seed+": \""+a+"\" vs \""+b+"\"";
+            int ref = reference (a, b, end);
+
+            check (sw.score(a, b) == ref, what+": score()");
+            check (sw.getEnd1() == end[0] && sw.getEnd2() == end[1],
+                   what+": end cell of score()");
+            check (gen.score(a, b) == ref, what+": generic score()");
+
+            banded.setBand(1 + rand.nextInt(4));
+            char[] folded = SmithWaterman.fold(b).toCharArray();
+            for (int min : new int[]{ 0, ref, ref + 1, rand.nextInt(12) }) {
+                int s = banded.score(a, b, null, 0, min);
+                int f = banded.score(a, b, folded, 0, min);
+                check (ref >= min ? s == ref && f == ref : s < min && f < min,
+                       what+": banded score(), band "+banded.getBand()
+                       +", min "+min);
+            }
+
+            try {
+                int n = sw.align(a, b), g = gen.align(a, b);
+                if (a.length() == 0 || b.length() == 0) {
+                    check (n == 0 && g == 0, what+": no alignment");
+                    continue;
+                }
+                check (n > 0 && sw.getEnd1() == end[0] 
+                       && sw.getEnd2() == end[1], what+": align() fill");
+                check (n == g, what+": "+n+" alignment(s), "+g
+                       +" through the Score interface");
+                List<String> profiled = render (sw, a, b, what);
+                check (profiled.equals(render (gen, a, b, what)),
+                       what+": alignments through the Score interface");
+
+                int min = rand.nextInt(12);
+                int k = sw.align(a, b, min);
+                check (ref >= min ? k == n : k == 0,
+                       what+": align() with min score "+min);
+            }
+            catch (RuntimeException ex) {
+                ex.printStackTrace();
+                check (false, what+": align() throws "+ex);
+            }
+        }
+    }
+
+    // each alignment rendered with its scores, checking the trace
+    static List<String> render (SmithWaterman sw, String a, String b,
+                                String what) {
+        List<String> alignments = new ArrayList<String>();
+        for (Enumeration<Alignment> e = sw.alignments();
+             e.hasMoreElements(); ) {
+            Alignment aln = e.nextElement();
+            for (int k = 0; k < aln.size(); ++k)
+                check (aln.index1(k) < a.length() 
+                       && aln.index2(k) < b.length(),
+                       what+": trace within the strings");
+            alignments.add(aln.score()+" "+aln.similarity()+" "
+                           +aln.global()+" "+aln.local()+"\n"+aln);
+        }
+        return alignments;
+    }
+
+    /*
+     * the batch score() of one query against several lane groups of
+     * targets, empty ones and repeats included, folded or not, banded
+     * and through the Score interface
+     */
+    static void testBatchEquivalence (long seed) {
+        Random rand = new Random (seed);
+        SmithWaterman sw = new SmithWaterman (), gen = generic ();
+        int[] end = new int[2];
+        for (int t = 0; t < 200; ++t) {
+            String query = random (rand, 14);
+            int size = 1 + rand.nextInt(3*SmithWaterman.LANES);
+            String[] strings = new String[size];
+            int[] offsets = new int[size+1];
+            StringBuilder text = new StringBuilder ();
+            for (int k = 0; k < size; ++k) {
+                strings[k] = random (rand, 20);
+                text.append(strings[k]);
+                offsets[k+1] = text.length();
+            }
+            char[] chars = text.toString().toCharArray();
+            char[] folded = SmithWaterman.fold(text).toCharArray();
+
+            int count = rand.nextInt(2*size + 1);
+            int[] targets = new int[count], minScores = new int[count];
+            int[] refs = new int[count];
+            for (int k = 0; k < count; ++k) {
+                targets[k] = rand.nextInt(size);
+                minScores[k] = rand.nextInt(12);
+                refs[k] = reference (query, strings[targets[k]], end);
+            }
+
+            String what = "seed "+seed+": batch "+t+" (\""+query+"\", "
+                +count+" targets)";
+            int[] scores = new int[count];
+            sw.setBand(0);
+            for (char[] f : new char[][]{ null, folded }) {
+                sw.score(query, chars, f, offsets, targets, count, 
+                         null, scores);
+                check (Arrays.equals(scores, refs), 
+                       what+(f == null ? "" : ", folded"));
+            }
+            gen.score(query, chars, null, offsets, targets, count, 
+                      null, scores);
+            check (Arrays.equals(scores, refs), 
+                   what+", through the Score interface");
+
+            sw.setBand(1 + rand.nextInt(4));
+            sw.score(query, chars, folded, offsets, targets, count, 
+                     minScores, scores);
+            for (int k = 0; k < count; ++k)
+                check (refs[k] >= minScores[k] ? scores[k] == refs[k]
+                       : scores[k] < minScores[k], what+", banded, target "
+                       +k+" \""+strings[targets[k]]+"\"");
+        }
+    }
+
+    public static void main (String[] argv) {
+        long seed = Long.getLong("seed", 20100817L);
+        testMergeAfterTrailingWhitespace ();
+        testScoreEquivalence (seed);
+        testBatchEquivalence (seed);
+        Check.done("SmithWatermanTest");
+    }
+}
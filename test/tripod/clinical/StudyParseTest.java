@@ -0,0 +1,215 @@
+package tripod.clinical;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import tripod.clinical.ClinicalCrawler.Study;
+import tripod.clinical.ClinicalCrawler.StudyHandler;
+
+import static tripod.clinical.Check.check;
+
+/**
+ * StudyScanner and StudySplitter, mapped and streamed, against a plain
+ * StudyParser over the same document: the same studies, in the same
+ * order, with the same fields
+ */
+public class StudyParseTest {
+
+    // the fields of s the scanner was asked for, one per line
+    static String describe (Study s, int fields) {
+        StringBuilder sb = new StringBuilder ();
+        sb.append(s.id).append('\n');
+        if ((fields & StudyScanner.TITLE) != 0)
+            sb.append(s.title).append('\n');
+        sb.append(s.interventions).append('\n');
+        if ((fields & StudyScanner.CONDITION) != 0)
+            sb.append(s.conditions).append('\n');
+        if ((fields & StudyScanner.SPONSOR) != 0)
+            sb.append(s.sponsors).append('\n');
+        if ((fields & StudyScanner.PHASE) != 0)
+            sb.append(s.phases).append('\n');
+        if ((fields & StudyScanner.RECEIVED) != 0)
+            sb.append(s.recieved).append('\n');
+        if ((fields & StudyScanner.START) != 0)
+            sb.append(s.start).append('\n');
+        if ((fields & StudyScanner.COMPLETION) != 0)
+            sb.append(s.completion).append('\n');
+        if ((fields & StudyScanner.UPDATED) != 0)
+            sb.append(s.updated).append('\n');
+        if ((fields & StudyScanner.VERIFIED) != 0)
+            sb.append(s.verified).append('\n');
+        if ((fields & StudyScanner.URL) != 0)
+            sb.append(s.url).append('\n');
+        return sb.toString();
+    }
+
+    static List<String> describe (List<Study> studies, int fields) {
+        List<String> fs = new ArrayList<String>();
+        for (Study s : studies)
+            fs.add(describe (s, fields));
+        return fs;
+    }
+
+    static List<Study> sax (byte[] doc) throws Exception {
+        final List<Study> studies = new ArrayList<Study>();
+        StudyParser parser = new StudyParser (new StudyHandler () {
+                public void study (Study s) {
+                    studies.add(s);
+                }
+            });
+        parser.summary = false;
+        parser.parse(new ByteArrayInputStream (doc));
+        return studies;
+    }
+
+    // the first difference, if there's one
+    static void same (List<String> expected, List<String> got,
+                      String what) {
+        if (expected.equals(got))
+            return;
+        for (int k = 0; k < Math.min(expected.size(), got.size()); ++k)
+            if (!expected.get(k).equals(got.get(k))) {
+                check (false, what+": study "+k+" is\n"+got.get(k)
+                       +"instead of\n"+expected.get(k));
+                return;
+            }
+        check (false, what+": "+got.size()+" studies instead of "
+               +expected.size());
+    }
+
+    /*
+     * the scanner on a whole document; one with CDATA has to be given
+     * up on with the studies untouched
+     */
+    static void testScanner () throws Exception {
+        byte[] doc = Fixtures.tricky(0, 60, false, 100).getBytes("UTF-8");
+        List<Study> expected = sax (doc);
+        check (expected.size() == 60 - 9,
+               expected.size()+" studies with interventions");
+        for (int fields : new int[]{ StudyScanner.ALL, StudyScanner.MATCH,
+                                     StudyScanner.MATCH
+                                     | StudyScanner.UPDATED }) {
+            List<Study> studies = new ArrayList<Study>();
+            check (new StudyScanner (fields).scan
+                   (ByteBuffer.wrap(doc), studies), "scanned, fields "
+                   +Integer.toHexString(fields));
+            same (describe (expected, fields), describe (studies, fields),
+                  "scanner, fields "+Integer.toHexString(fields));
+        }
+
+        doc = Fixtures.tricky(0, 60, true, 100).getBytes("UTF-8");
+        List<Study> studies = new ArrayList<Study>();
+        studies.add(new Study ());
+        check (!new StudyScanner (StudyScanner.ALL).scan
+               (ByteBuffer.wrap(doc), studies) && studies.size() == 1,
+               "scanner gives up on CDATA");
+    }
+
+    static List<Study> split (StudySplitter splitter, Object doc)
+        throws Exception {
+        final List<Study> studies = new ArrayList<Study>();
+        StudyHandler handler = new StudyHandler () {
+                public void study (Study s) {
+                    studies.add(s);
+                }
+            };
+        if (doc instanceof File)
+            splitter.parse((File)doc, handler);
+        else
+            splitter.parse(new ByteArrayInputStream ((byte[])doc), handler);
+        return studies;
+    }
+
+    /*
+     * chunks of all sorts of sizes, so that chunks end at every byte
+     * of a </study> and some have a CDATA study in them, on one thread
+     * and more, scanned or not
+     */
+    static void testSplitter () throws Exception {
+        byte[] doc = Fixtures.tricky(0, 120, true, 100).getBytes("UTF-8");
+        File file = File.createTempFile("trials", ".xml");
+        try {
+            write (file, doc);
+            List<Study> expected = sax (doc);
+            for (int fields : new int[]{ 0, StudyScanner.ALL,
+                                         StudyScanner.MATCH }) {
+                int mask = fields == 0 ? StudyScanner.ALL : fields;
+                List<String> fs = describe (expected, mask);
+                for (int threads = 1; threads <= 3; threads += 2)
+                    for (int size = 64; size < 2000; size += 37) {
+                        StudySplitter splitter = new StudySplitter (threads);
+                        splitter.setFields(fields);
+                        splitter.setChunkSize(size);
+                        same (fs, describe (split (splitter, file), mask),
+                              "mapped, fields "+Integer.toHexString(fields)
+                              +", "+threads+" thread(s), chunks of "+size);
+                    }
+            }
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    /*
+     * the stream path reads into a buffer of at least 64k; the chunk
+     * size is picked so that the first buffer ends within a </study>,
+     * and a study longer than the buffer makes it grow
+     */
+    static void testSplitterStream () throws Exception {
+        byte[] doc = Fixtures.tricky(0, 200, true, 70000).getBytes("UTF-8");
+        List<Study> expected = sax (doc);
+        StudySplitter splitter = new StudySplitter (1);
+        int start = splitter.prolog(doc, doc.length);
+        for (int fields : new int[]{ 0, StudyScanner.ALL,
+                                     StudyScanner.MATCH }) {
+            int mask = fields == 0 ? StudyScanner.ALL : fields;
+            List<String> fs = describe (expected, mask);
+            // the buffer holds the content from start on when it's full
+            for (int end = StudySplitter.firstEnd
+                     (ByteBuffer.wrap(doc), start + (1 << 16), doc.length),
+                     k = 0; end > 0 && k < 3; ++k) {
+                for (int into = 1; into < StudySplitter.END.length; ++into) {
+                    int size = end - into - start;
+                    for (int threads = 1; threads <= 3; threads += 2) {
+                        splitter = new StudySplitter (threads);
+                        splitter.setFields(fields);
+                        splitter.setChunkSize(size);
+                        same (fs, describe (split (splitter, doc), mask),
+                              "streamed, fields "
+                              +Integer.toHexString(fields)+", "+threads
+                              +" thread(s), chunks of "+size);
+                    }
+                }
+                end = StudySplitter.firstEnd
+                    (ByteBuffer.wrap(doc), end, doc.length);
+            }
+        }
+    }
+
+    static void write (File file, byte[] data) throws IOException {
+        OutputStream os = new FileOutputStream (file);
+        try {
+            os.write(data);
+        }
+        finally {
+            os.close();
+        }
+    }
+
+    public static void main (String[] argv) throws Exception {
+        try {
+            testScanner ();
+            testSplitter ();
+            testSplitterStream ();
+        }
+        catch (Exception ex) {
+            // the parse threads would otherwise keep the vm up
+            ex.printStackTrace();
+            check (false, "parse threw "+ex);
+        }
+        Check.done("StudyParseTest");
+    }
+}